@@ -0,0 +1,30 @@
+package Cluster;
+
+/**
+ * Assertions of the check programs which make check runs. A failed one
+ * prints what failed in which check and exits with an error, so make stops
+ * at that program.
+ */
+public class Check {
+
+	public static void that(boolean ok, String what) {
+		if (!ok) {
+			fail(what);
+		}
+	}
+
+	public static void fail(String what) {
+		String name = "";
+		for (StackTraceElement frame : new Throwable().getStackTrace()) {
+			if (!frame.getClassName().equals(Check.class.getName())) {
+				name = frame.getClassName();
+				// an anonymous class in a check reports as the check
+				name = name.substring(name.lastIndexOf('.') + 1)
+						.split("\\$")[0];
+				break;
+			}
+		}
+		System.out.println(name + " failed: " + what);
+		System.exit(-1);
+	}
+}
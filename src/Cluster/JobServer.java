@@ -0,0 +1,203 @@
+package Cluster;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Clustering jobs read from a socket on the local host, one client at a
+ * time. A job is one line
+ *
+ * cluster <K> [-seed <n>] [-seeds] [stopping criteria]
+ *
+ * where -seed fixes the random choice of the initial seeds and -seeds
+ * gives them instead on the K lines following the request. The line
+ * shutdown stops the service. The answer to a job is
+ *
+ * ok <K> <N> <iterations> <objective>
+ *
+ * followed by the K seeds and the N labels, one per line, or a single
+ * line error <message>.
+ */
+public class JobServer {
+
+	public static final String USAGE = "-serve <port>";
+
+	/**
+	 * one request of a client
+	 */
+	public static class Job {
+		private int k;
+		private Long randomSeed;
+		private String[] seeds;
+		private StopCriteria criteria = new StopCriteria();
+
+		/**
+		 * number of clusters, 0 for shutdown
+		 */
+		public int k() {
+			return this.k;
+		}
+
+		/**
+		 * seed of the random choice of the initial seeds, null for any
+		 */
+		public Long randomSeed() {
+			return this.randomSeed;
+		}
+
+		/**
+		 * the initial seeds as sent by the client, null to choose them
+		 */
+		public String[] seeds() {
+			return this.seeds;
+		}
+
+		public StopCriteria criteria() {
+			return this.criteria;
+		}
+	}
+
+	private ServerSocket server;
+	private Socket client;
+	private BufferedReader in;
+	private Writer out;
+
+	/**
+	 * listen on the loopback interface only, jobs carry no authentication
+	 */
+	public JobServer(int port) throws IOException {
+		this.server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+	}
+
+	public int port() {
+		return this.server.getLocalPort();
+	}
+
+	/**
+	 * wait for the next valid job, answering malformed ones with an error
+	 * and accepting the next client when one disconnects
+	 */
+	public Job next() throws IOException {
+		while (true) {
+			if (this.client == null) {
+				this.client = this.server.accept();
+				this.in = new BufferedReader(new InputStreamReader(
+						this.client.getInputStream()));
+				this.out = new BufferedWriter(new OutputStreamWriter(
+						this.client.getOutputStream()));
+			}
+			String line;
+			try {
+				line = this.in.readLine();
+			} catch (IOException e) {
+				line = null;
+			}
+			if (line == null) {
+				this.drop();
+				continue;
+			}
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			try {
+				return this.parse(line.split("\\s+"));
+			} catch (IllegalArgumentException e) {
+				this.error(e.getMessage());
+			} catch (IOException e) {
+				this.drop();
+			}
+		}
+	}
+
+	private Job parse(String[] words) throws IOException {
+		Job job = new Job();
+		if (words[0].equals("shutdown") && words.length == 1) {
+			return job;
+		}
+		if (!words[0].equals("cluster") || words.length < 2) {
+			throw new IllegalArgumentException("expected cluster <K> or shutdown");
+		}
+		job.k = Integer.parseInt(words[1]);
+		if (job.k <= 0) {
+			throw new IllegalArgumentException("K has to be positive");
+		}
+		boolean given = false;
+		int pos = 2;
+		while (pos < words.length) {
+			int next = job.criteria.parse(words, pos);
+			if (next > pos) {
+				pos = next;
+			} else if (words[pos].equals("-seed") && pos + 1 < words.length) {
+				job.randomSeed = Long.parseLong(words[pos + 1]);
+				pos += 2;
+			} else if (words[pos].equals("-seeds")) {
+				given = true;
+				pos++;
+			} else {
+				throw new IllegalArgumentException("unknown option " + words[pos]);
+			}
+		}
+		if (given) {
+			job.seeds = new String[job.k];
+			for (int i = 0; i < job.k; i++) {
+				job.seeds[i] = this.in.readLine();
+				if (job.seeds[i] == null) {
+					throw new IllegalArgumentException("missing seed " + i);
+				}
+				job.seeds[i] = job.seeds[i].trim();
+			}
+		}
+		return job;
+	}
+
+	/**
+	 * the answer to the current job, flushed by done()
+	 */
+	public Writer output() {
+		return this.out;
+	}
+
+	public void done() throws IOException {
+		this.out.flush();
+	}
+
+	/**
+	 * reject the current job, a client which cannot be told is dropped
+	 */
+	public void error(String message) {
+		try {
+			this.out.write("error " + message + "\n");
+			this.out.flush();
+		} catch (IOException e) {
+			this.drop();
+		}
+	}
+
+	/**
+	 * close the connection to the current client, next() waits for a new one
+	 */
+	public void drop() {
+		if (this.client == null) {
+			return;
+		}
+		try {
+			this.client.close();
+		} catch (IOException e) {
+			// the connection is gone either way
+		}
+		this.client = null;
+	}
+
+	public void close() throws IOException {
+		this.drop();
+		this.server.close();
+	}
+}
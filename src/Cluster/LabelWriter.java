@@ -0,0 +1,60 @@
+package Cluster;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes labels to a file one per line. The digits go straight into a
+ * byte buffer, no String is made per label.
+ */
+public class LabelWriter {
+
+	private OutputStream out;
+	private byte[] buffer = new byte[1 << 16];
+	private int position;
+
+	public LabelWriter(String filename) throws IOException {
+		this.out = new FileOutputStream(filename);
+	}
+
+	/**
+	 * write labels [from, to)
+	 */
+	public void write(int[] labels, int from, int to) throws IOException {
+		for (int i = from; i < to; i++) {
+			// the longest int takes 11 characters and the newline
+			if (this.position + 12 > this.buffer.length) {
+				this.flush();
+			}
+			// as a long, the negation of the smallest int does not fit an int
+			long label = labels[i];
+			if (label < 0) {
+				this.buffer[this.position++] = '-';
+				label = -label;
+			}
+			int end = this.position;
+			do {
+				end++;
+				label /= 10;
+			} while (label > 0);
+			label = Math.abs((long) labels[i]);
+			for (int p = end - 1; p >= this.position; p--) {
+				this.buffer[p] = (byte) ('0' + label % 10);
+				label /= 10;
+			}
+			this.buffer[end] = '\n';
+			this.position = end + 1;
+		}
+	}
+
+	private void flush() throws IOException {
+		this.out.write(this.buffer, 0, this.position);
+		this.position = 0;
+	}
+
+	public void close() throws IOException {
+		this.flush();
+		this.out.close();
+	}
+}
@@ -0,0 +1,65 @@
+package Cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Checks the file LabelWriter writes against the labels printed one by
+ * one, for labels of every number of digits, negative ones and calls whose
+ * labels end exactly at, or run across, the end of the buffer.
+ */
+public class LabelWriterCheck {
+
+	public static void main(String[] args) throws IOException {
+		Random rand = new Random(1);
+		int[] labels = new int[100000];
+		int[] fixed = { 0, -1, 9, 10, 99, 100, -10, Integer.MAX_VALUE,
+				Integer.MIN_VALUE, -Integer.MAX_VALUE };
+		for (int i = 0; i < labels.length; i++) {
+			if (i < fixed.length) {
+				labels[i] = fixed[i];
+			} else {
+				// the number of digits is spread evenly
+				labels[i] = rand.nextInt() >> rand.nextInt(32);
+			}
+		}
+		StringBuilder expected = new StringBuilder();
+		for (int label : labels) {
+			expected.append(label).append('\n');
+		}
+
+		// one call, calls of one label and calls of uneven sizes
+		int[] steps = { labels.length, 1, 4093 };
+		for (int step : steps) {
+			File file = File.createTempFile("LabelWriterCheck", ".txt");
+			file.deleteOnExit();
+			LabelWriter out = new LabelWriter(file.getPath());
+			for (int from = 0; from < labels.length; from += step) {
+				out.write(labels, from, Math.min(from + step, labels.length));
+			}
+			out.close();
+			String written = new String(Files.readAllBytes(file.toPath()),
+					"US-ASCII");
+			Check.that(written.equals(expected.toString()), "labels written in "
+					+ "calls of " + step);
+		}
+
+		// a label right at the end of the buffer, then one across it
+		File file = File.createTempFile("LabelWriterCheck", ".txt");
+		file.deleteOnExit();
+		LabelWriter out = new LabelWriter(file.getPath());
+		int[] nines = new int[(1 << 16) / 10 + 2];
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < nines.length; i++) {
+			nines[i] = 123456789;
+			lines.append("123456789\n");
+		}
+		out.write(nines, 0, nines.length);
+		out.close();
+		Check.that(new String(Files.readAllBytes(file.toPath()), "US-ASCII")
+				.equals(lines.toString()), "labels across the buffer end");
+		System.out.println("LabelWriterCheck: ok");
+	}
+}
@@ -0,0 +1,165 @@
+package Cluster;
+
+/**
+ * Stopping criteria of the k-means loops. A run always stops once no label
+ * changes. It can stop earlier
+ * - after maxIterations iterations,
+ * - when at most a fraction epsilon of the items changed their label,
+ * - when the objective improved by less than the relative improvement,
+ * - when no seed moved further than tolerance in the recalculation.
+ * A value of 0 disables a criterion, except for the tolerance which is
+ * disabled when negative.
+ */
+public class StopCriteria {
+
+	public static final String USAGE = "[-maxIter <n>] [-epsilon <fraction>] [-tolerance <shift>] [-improvement <ratio>]";
+
+	private int maxIterations;
+	private double epsilon;
+	private double tolerance = -1;
+	private double improvement;
+
+	// state of the current run
+	private int iterations;
+	private double objective;
+	private String reason;
+
+	/**
+	 * take the option at args[pos] with its value if it is a stopping
+	 * criterion
+	 * @return the position after the option, pos if it is no criterion
+	 */
+	public int parse(String[] args, int pos) {
+		if (pos + 1 >= args.length) {
+			return pos;
+		}
+		String option = args[pos];
+		if (option.equals("-maxIter")) {
+			this.maxIterations = Integer.parseInt(args[pos + 1]);
+		} else if (option.equals("-epsilon")) {
+			this.epsilon = Double.parseDouble(args[pos + 1]);
+		} else if (option.equals("-tolerance")) {
+			this.tolerance = Double.parseDouble(args[pos + 1]);
+		} else if (option.equals("-improvement")) {
+			this.improvement = Double.parseDouble(args[pos + 1]);
+		} else {
+			return pos;
+		}
+		return pos + 2;
+	}
+
+	/**
+	 * the same criteria for another run, without the state of this one
+	 */
+	public StopCriteria copy() {
+		StopCriteria copy = new StopCriteria();
+		copy.maxIterations = this.maxIterations;
+		copy.epsilon = this.epsilon;
+		copy.tolerance = this.tolerance;
+		copy.improvement = this.improvement;
+		return copy;
+	}
+
+	/**
+	 * whether the seed shift has to be measured for moved()
+	 */
+	public boolean usesShift() {
+		return this.tolerance >= 0;
+	}
+
+	/**
+	 * whether assigned() needs the objective of every iteration. If not it
+	 * may be given NaN, and the objective of the final assignment is set
+	 * with finish() instead.
+	 */
+	public boolean usesObjective() {
+		return this.improvement > 0;
+	}
+
+	/**
+	 * forget the previous run
+	 */
+	public void start() {
+		this.iterations = 0;
+		this.objective = Double.NaN;
+		this.reason = null;
+	}
+
+	/**
+	 * check the criteria after the assignment step of an iteration
+	 * @param changed
+	 *            items which changed their label
+	 * @param total
+	 *            number of items
+	 * @param objective
+	 *            objective of the new assignment
+	 * @return whether to stop before the seeds are recalculated
+	 */
+	public boolean assigned(long changed, long total, double objective) {
+		this.iterations++;
+		double previous = this.objective;
+		this.objective = objective;
+		if (changed == 0) {
+			return this.stop("no label changed");
+		}
+		if (this.epsilon > 0 && changed <= this.epsilon * total) {
+			return this.stop(changed + " of " + total + " labels changed");
+		}
+		if (this.improvement > 0 && !Double.isNaN(previous)
+				&& previous - objective < this.improvement * Math.abs(previous)) {
+			return this.stop("objective improved by "
+					+ (previous - objective) / Math.abs(previous));
+		}
+		if (this.maxIterations > 0 && this.iterations >= this.maxIterations) {
+			return this.stop("reached " + this.maxIterations + " iterations");
+		}
+		return false;
+	}
+
+	/**
+	 * check the tolerance after the seeds have been recalculated
+	 * @param shift
+	 *            largest distance a seed moved
+	 * @return whether to stop
+	 */
+	public boolean moved(double shift) {
+		if (this.tolerance >= 0 && shift <= this.tolerance) {
+			return this.stop("largest seed shift " + shift);
+		}
+		return false;
+	}
+
+	/**
+	 * record the objective of the final assignment of a run which did not
+	 * measure it in every iteration
+	 */
+	public void finish(double objective) {
+		this.objective = objective;
+	}
+
+	private boolean stop(String reason) {
+		this.reason = reason;
+		return true;
+	}
+
+	public int iterations() {
+		return this.iterations;
+	}
+
+	public double objective() {
+		return this.objective;
+	}
+
+	public String reason() {
+		return this.reason;
+	}
+
+	/**
+	 * print why and where the run stopped
+	 */
+	public void report() {
+		System.out.println("Stopped after " + this.iterations
+				+ " iterations: " + this.reason + ", objective "
+				+ this.objective);
+	}
+}
@@ -0,0 +1,78 @@
+package Cluster;
+
+/**
+ * Checks option parsing and each stopping criterion on made up iterations,
+ * and that a copy and a restarted run do not carry the state of a previous
+ * run.
+ */
+public class StopCriteriaCheck {
+
+	public static void main(String[] args) {
+		// without options a run only stops when no label changes
+		StopCriteria none = new StopCriteria();
+		none.start();
+		Check.that(!none.usesShift() && !none.usesObjective(), "defaults");
+		for (int i = 0; i < 100; i++) {
+			Check.that(!none.assigned(1, 10, 100 - i), "stop by default");
+		}
+		Check.that(none.assigned(0, 10, 0), "stop when no label changed");
+		Check.that(none.iterations() == 101, "count iterations");
+
+		String[] options = { "-maxIter", "3", "-epsilon", "0.1", "-chunk",
+				"5", "-improvement" };
+		StopCriteria parsed = new StopCriteria();
+		Check.that(parsed.parse(options, 0) == 2, "parse -maxIter");
+		Check.that(parsed.parse(options, 2) == 4, "parse -epsilon");
+		Check.that(parsed.parse(options, 4) == 4, "leave other options");
+		Check.that(parsed.parse(options, 6) == 6,
+				"leave an option without value");
+
+		StopCriteria maxIter = criteria("-maxIter", "3");
+		Check.that(!maxIter.assigned(5, 10, 9) && !maxIter.assigned(5, 10, 8)
+				&& maxIter.assigned(5, 10, 7), "stop after 3 iterations");
+		maxIter.start();
+		Check.that(!maxIter.assigned(5, 10, 9),
+				"start forgets the iterations");
+
+		StopCriteria epsilon = criteria("-epsilon", "0.1");
+		Check.that(!epsilon.assigned(11, 100, 1), "more than epsilon changed");
+		Check.that(epsilon.assigned(10, 100, 1), "epsilon changed");
+
+		StopCriteria improvement = criteria("-improvement", "0.01");
+		Check.that(improvement.usesObjective(),
+				"improvement uses the objective");
+		Check.that(!improvement.assigned(5, 10, 1000), "first objective");
+		Check.that(!improvement.assigned(5, 10, 980), "improved by 2%");
+		Check.that(improvement.assigned(5, 10, 975), "improved by 0.5%");
+		Check.that(improvement.objective() == 975, "last objective");
+
+		// NaN objectives of runs which do not measure them never stop
+		StopCriteria unmeasured = criteria("-maxIter", "0");
+		Check.that(!unmeasured.assigned(5, 10, Double.NaN)
+				&& !unmeasured.assigned(5, 10, Double.NaN), "NaN objective");
+		unmeasured.finish(42);
+		Check.that(unmeasured.objective() == 42, "finish sets the objective");
+
+		StopCriteria tolerance = criteria("-tolerance", "0");
+		Check.that(tolerance.usesShift(), "tolerance 0 uses the shift");
+		Check.that(!tolerance.moved(0.5), "seed moved");
+		Check.that(tolerance.moved(0), "no seed moved");
+
+		StopCriteria copy = improvement.copy();
+		copy.start();
+		Check.that(copy.usesObjective() && copy.iterations() == 0
+				&& Double.isNaN(copy.objective()), "copy without state");
+		Check.that(!copy.assigned(5, 10, 975),
+				"copy has no previous objective");
+		Check.that(improvement.iterations() == 3, "copy leaves the original");
+		System.out.println("StopCriteriaCheck: ok");
+	}
+
+	private static StopCriteria criteria(String option, String value) {
+		StopCriteria criteria = new StopCriteria();
+		Check.that(criteria.parse(new String[] { option, value }, 0) == 2,
+				"parse " + option);
+		criteria.start();
+		return criteria;
+	}
+}
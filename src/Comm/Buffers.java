@@ -0,0 +1,95 @@
+package Comm;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Copies between message buffers, which are primitive arrays or NIO
+ * buffers. Offsets into a NIO buffer are absolute indices, its position
+ * and limit are left alone.
+ */
+class Buffers {
+
+	/**
+	 * copy count elements of src starting at srcOffset into dest starting at
+	 * destOffset
+	 */
+	static void copy(Object src, int srcOffset, Object dest, int destOffset,
+			int count) throws CommException {
+		if (!(src instanceof Buffer) && !(dest instanceof Buffer)) {
+			System.arraycopy(src, srcOffset, dest, destOffset, count);
+		} else if (src instanceof DoubleBuffer) {
+			DoubleBuffer s = (DoubleBuffer) src;
+			if (dest instanceof DoubleBuffer) {
+				((DoubleBuffer) dest).put(destOffset, s, srcOffset, count);
+			} else {
+				s.get(srcOffset, (double[]) dest, destOffset, count);
+			}
+		} else if (dest instanceof DoubleBuffer) {
+			((DoubleBuffer) dest).put(destOffset, (double[]) src, srcOffset,
+					count);
+		} else if (src instanceof FloatBuffer) {
+			FloatBuffer s = (FloatBuffer) src;
+			if (dest instanceof FloatBuffer) {
+				((FloatBuffer) dest).put(destOffset, s, srcOffset, count);
+			} else {
+				s.get(srcOffset, (float[]) dest, destOffset, count);
+			}
+		} else if (dest instanceof FloatBuffer) {
+			((FloatBuffer) dest).put(destOffset, (float[]) src, srcOffset,
+					count);
+		} else if (src instanceof IntBuffer) {
+			IntBuffer s = (IntBuffer) src;
+			if (dest instanceof IntBuffer) {
+				((IntBuffer) dest).put(destOffset, s, srcOffset, count);
+			} else {
+				s.get(srcOffset, (int[]) dest, destOffset, count);
+			}
+		} else if (dest instanceof IntBuffer) {
+			((IntBuffer) dest).put(destOffset, (int[]) src, srcOffset, count);
+		} else if (src instanceof LongBuffer) {
+			LongBuffer s = (LongBuffer) src;
+			if (dest instanceof LongBuffer) {
+				((LongBuffer) dest).put(destOffset, s, srcOffset, count);
+			} else {
+				s.get(srcOffset, (long[]) dest, destOffset, count);
+			}
+		} else if (dest instanceof LongBuffer) {
+			((LongBuffer) dest).put(destOffset, (long[]) src, srcOffset, count);
+		} else if (src instanceof ByteBuffer) {
+			ByteBuffer s = (ByteBuffer) src;
+			if (dest instanceof ByteBuffer) {
+				((ByteBuffer) dest).put(destOffset, s, srcOffset, count);
+			} else {
+				s.get(srcOffset, (byte[]) dest, destOffset, count);
+			}
+		} else if (dest instanceof ByteBuffer) {
+			((ByteBuffer) dest).put(destOffset, (byte[]) src, srcOffset, count);
+		} else {
+			throw new CommException("Unsupported buffer " + src.getClass()
+					+ " to " + dest.getClass());
+		}
+	}
+
+	/**
+	 * a heap array with the element type of a NIO buffer
+	 */
+	static Object array(Buffer buf, int count) throws CommException {
+		if (buf instanceof DoubleBuffer) {
+			return new double[count];
+		} else if (buf instanceof FloatBuffer) {
+			return new float[count];
+		} else if (buf instanceof IntBuffer) {
+			return new int[count];
+		} else if (buf instanceof LongBuffer) {
+			return new long[count];
+		} else if (buf instanceof ByteBuffer) {
+			return new byte[count];
+		}
+		throw new CommException("Unsupported buffer " + buf.getClass());
+	}
+}
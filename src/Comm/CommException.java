@@ -0,0 +1,17 @@
+package Comm;
+
+/**
+ * Failure inside a communicator backend
+ */
+public class CommException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public CommException(String message) {
+		super(message);
+	}
+
+	public CommException(Throwable cause) {
+		super(cause);
+	}
+}
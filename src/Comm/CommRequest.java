@@ -0,0 +1,12 @@
+package Comm;
+
+/**
+ * Handle of a non-blocking send or receive
+ */
+public interface CommRequest {
+
+	/**
+	 * block until the operation has completed
+	 */
+	void waitFor() throws CommException;
+}
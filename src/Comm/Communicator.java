@@ -0,0 +1,61 @@
+package Comm;
+
+/**
+ * The communication operations the clusterers need. Buffers are primitive
+ * arrays (double[], float[], int[], long[], char[], byte[], boolean[]) and
+ * the element type is taken from the array itself, offsets and counts are
+ * in elements like in MPI. Point to point messages and broadcasts also take
+ * NIO buffers (DoubleBuffer, FloatBuffer, IntBuffer, LongBuffer,
+ * ByteBuffer), indexed absolutely; reductions take arrays only.
+ */
+public interface Communicator {
+
+	int rank();
+
+	int size();
+
+	void send(Object buf, int offset, int count, int dest, int tag)
+			throws CommException;
+
+	void recv(Object buf, int offset, int count, int source, int tag)
+			throws CommException;
+
+	CommRequest isend(Object buf, int offset, int count, int dest, int tag)
+			throws CommException;
+
+	CommRequest irecv(Object buf, int offset, int count, int source, int tag)
+			throws CommException;
+
+	/**
+	 * wait until one of the requests has completed. The completed entry is
+	 * set to null so the same array can be passed again for the rest. The
+	 * requests may also come from communicators split from this one.
+	 * @return the index of the completed request
+	 */
+	int waitAny(CommRequest[] requests) throws CommException;
+
+	void bcast(Object buf, int offset, int count, int root)
+			throws CommException;
+
+	/**
+	 * combine count elements of every rank's sendbuf into recvbuf on root
+	 */
+	void reduce(Object sendbuf, int sendoffset, Object recvbuf,
+			int recvoffset, int count, ReduceOp op, int root)
+			throws CommException;
+
+	void barrier() throws CommException;
+
+	/**
+	 * split the ranks into one communicator per color, ranked by key and
+	 * then by their rank here. Every rank has to call it; a rank with a
+	 * negative color joins no communicator and gets null. Only the
+	 * communicator the backend was started with is finished.
+	 */
+	Communicator split(int color, int key) throws CommException;
+
+	/**
+	 * release the backend, no communication is allowed afterwards
+	 */
+	void finish() throws CommException;
+}
@@ -0,0 +1,275 @@
+package Comm;
+
+import java.nio.Buffer;
+
+import mpi.*;
+
+/**
+ * Communicator backed by the mpiJava API (MPJ Express / Open MPI). The API
+ * only takes arrays, so a NIO buffer is staged through a heap array of the
+ * message size; callers keep such messages to chunks.
+ */
+public class MPJCommunicator implements Communicator {
+
+	private Intracomm comm;
+
+	/**
+	 * initialize MPI and return the world communicator
+	 */
+	public static MPJCommunicator init(String[] args) throws CommException {
+		try {
+			MPI.Init(args);
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+		return new MPJCommunicator(MPI.COMM_WORLD);
+	}
+
+	public MPJCommunicator(Intracomm comm) {
+		this.comm = comm;
+	}
+
+	private static class MPJRequest implements CommRequest {
+		private Request request;
+		// receive staged for a NIO buffer: copied into target once done
+		private Object staging;
+		private Object target;
+		private int offset;
+		private int count;
+
+		MPJRequest(Request request) {
+			this.request = request;
+		}
+
+		MPJRequest(Request request, Object staging, Object target,
+				int offset, int count) {
+			this.request = request;
+			this.staging = staging;
+			this.target = target;
+			this.offset = offset;
+			this.count = count;
+		}
+
+		public void waitFor() throws CommException {
+			try {
+				this.request.Wait();
+			} catch (MPIException e) {
+				throw new CommException(e);
+			}
+			this.complete();
+		}
+
+		void complete() throws CommException {
+			if (this.target != null) {
+				Buffers.copy(this.staging, 0, this.target, this.offset,
+						this.count);
+			}
+			this.staging = null;
+			this.target = null;
+		}
+	}
+
+	/**
+	 * the elements of a message as an array, a copy for a NIO buffer
+	 */
+	private static Object stageOut(Object buf, int offset, int count)
+			throws CommException {
+		if (!(buf instanceof Buffer)) {
+			return buf;
+		}
+		Object array = Buffers.array((Buffer) buf, count);
+		Buffers.copy(buf, offset, array, 0, count);
+		return array;
+	}
+
+	/**
+	 * MPI datatype matching the element type of a buffer
+	 */
+	private static Datatype type(Object buf) throws CommException {
+		if (buf instanceof double[]) {
+			return MPI.DOUBLE;
+		} else if (buf instanceof float[]) {
+			return MPI.FLOAT;
+		} else if (buf instanceof int[]) {
+			return MPI.INT;
+		} else if (buf instanceof long[]) {
+			return MPI.LONG;
+		} else if (buf instanceof char[]) {
+			return MPI.CHAR;
+		} else if (buf instanceof byte[]) {
+			return MPI.BYTE;
+		} else if (buf instanceof boolean[]) {
+			return MPI.BOOLEAN;
+		}
+		throw new CommException("Unsupported buffer " + buf.getClass());
+	}
+
+	private static Op op(ReduceOp op) {
+		switch (op) {
+		case MIN:
+			return MPI.MIN;
+		case MAX:
+			return MPI.MAX;
+		default:
+			return MPI.SUM;
+		}
+	}
+
+	public int rank() {
+		try {
+			return this.comm.Rank();
+		} catch (MPIException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int size() {
+		try {
+			return this.comm.Size();
+		} catch (MPIException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void send(Object buf, int offset, int count, int dest, int tag)
+			throws CommException {
+		try {
+			if (buf instanceof Buffer) {
+				buf = stageOut(buf, offset, count);
+				offset = 0;
+			}
+			this.comm.Send(buf, offset, count, type(buf), dest, tag);
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public void recv(Object buf, int offset, int count, int source, int tag)
+			throws CommException {
+		try {
+			if (buf instanceof Buffer) {
+				Object array = Buffers.array((Buffer) buf, count);
+				this.comm.Recv(array, 0, count, type(array), source, tag);
+				Buffers.copy(array, 0, buf, offset, count);
+				return;
+			}
+			this.comm.Recv(buf, offset, count, type(buf), source, tag);
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public CommRequest isend(Object buf, int offset, int count, int dest,
+			int tag) throws CommException {
+		try {
+			if (buf instanceof Buffer) {
+				buf = stageOut(buf, offset, count);
+				offset = 0;
+			}
+			return new MPJRequest(this.comm.Isend(buf, offset, count,
+					type(buf), dest, tag));
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public CommRequest irecv(Object buf, int offset, int count, int source,
+			int tag) throws CommException {
+		try {
+			if (buf instanceof Buffer) {
+				Object array = Buffers.array((Buffer) buf, count);
+				return new MPJRequest(this.comm.Irecv(array, 0, count,
+						type(array), source, tag), array, buf, offset, count);
+			}
+			return new MPJRequest(this.comm.Irecv(buf, offset, count,
+					type(buf), source, tag));
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public int waitAny(CommRequest[] requests) throws CommException {
+		// hand only the requests still active to MPI
+		int active = 0;
+		for (CommRequest r : requests) {
+			if (r != null) {
+				active++;
+			}
+		}
+		if (active == 0) {
+			throw new CommException("No active request");
+		}
+		Request[] raw = new Request[active];
+		int[] index = new int[active];
+		active = 0;
+		for (int i = 0; i < requests.length; i++) {
+			if (requests[i] != null) {
+				raw[active] = ((MPJRequest) requests[i]).request;
+				index[active++] = i;
+			}
+		}
+		try {
+			int done = index[Request.Waitany(raw).index];
+			((MPJRequest) requests[done]).complete();
+			requests[done] = null;
+			return done;
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public void bcast(Object buf, int offset, int count, int root)
+			throws CommException {
+		try {
+			if (buf instanceof Buffer) {
+				Object array = this.rank() == root ? stageOut(buf, offset,
+						count) : Buffers.array((Buffer) buf, count);
+				this.comm.Bcast(array, 0, count, type(array), root);
+				if (this.rank() != root) {
+					Buffers.copy(array, 0, buf, offset, count);
+				}
+				return;
+			}
+			this.comm.Bcast(buf, offset, count, type(buf), root);
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public void reduce(Object sendbuf, int sendoffset, Object recvbuf,
+			int recvoffset, int count, ReduceOp op, int root)
+			throws CommException {
+		try {
+			this.comm.Reduce(sendbuf, sendoffset, recvbuf, recvoffset, count,
+					type(sendbuf), op(op), root);
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public void barrier() throws CommException {
+		try {
+			this.comm.Barrier();
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public Communicator split(int color, int key) throws CommException {
+		try {
+			Intracomm part = this.comm.Split(color < 0 ? MPI.UNDEFINED
+					: color, key);
+			return part == null ? null : new MPJCommunicator(part);
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+
+	public void finish() throws CommException {
+		try {
+			MPI.Finalize();
+		} catch (MPIException e) {
+			throw new CommException(e);
+		}
+	}
+}
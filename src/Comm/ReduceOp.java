@@ -0,0 +1,8 @@
+package Comm;
+
+/**
+ * Element-wise reduction operations
+ */
+public enum ReduceOp {
+	SUM, MIN, MAX
+}
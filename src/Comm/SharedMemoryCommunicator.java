@@ -0,0 +1,409 @@
+package Comm;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Communicator for ranks running as threads of one JVM. A message is never
+ * serialized or staged in an intermediate buffer: a send and its matching
+ * receive are paired in the receiver's mailbox and the elements are copied
+ * once, straight from the sender's buffer into the receiver's buffer,
+ * whether those are arrays or direct NIO buffers. Sends
+ * complete when that copy is done, so they behave like MPI_Ssend.
+ */
+public class SharedMemoryCommunicator implements Communicator {
+
+	// tags below zero are reserved for the collectives
+	private static final int BCAST_TAG = -1;
+	private static final int REDUCE_TAG = -2;
+
+	/**
+	 * code run by every rank
+	 */
+	public interface Task {
+		void run(Communicator comm) throws Exception;
+	}
+
+	/**
+	 * state shared by all ranks of one group
+	 */
+	private static class Group {
+		private Mailbox[] mailboxes;
+		private CyclicBarrier barrier;
+		// one slot per rank for the collective set up of split()
+		private Object[] exchange;
+
+		Group(int size) {
+			this.mailboxes = new Mailbox[size];
+			for (int i = 0; i < size; i++) {
+				this.mailboxes[i] = new Mailbox();
+			}
+			this.barrier = new CyclicBarrier(size);
+			this.exchange = new Object[size];
+		}
+	}
+
+	/**
+	 * matching queues of one rank, both in posting order so messages between
+	 * two ranks with the same tag never overtake each other
+	 */
+	private static class Mailbox {
+		// sends that arrived before a matching receive was posted
+		private LinkedList<Message> unexpected = new LinkedList<Message>();
+		// receives posted before a matching send arrived
+		private LinkedList<Message> posted = new LinkedList<Message>();
+	}
+
+	/**
+	 * a posted send or receive, peer is the source of a receive and the
+	 * sender of a send
+	 */
+	private static class Message implements CommRequest {
+		private Object owner;
+		private Object buf;
+		private int offset;
+		private int count;
+		private int peer;
+		private int tag;
+		private boolean done;
+		private CommException error;
+
+		Message(Object owner, Object buf, int offset, int count, int peer,
+				int tag) {
+			this.owner = owner;
+			this.buf = buf;
+			this.offset = offset;
+			this.count = count;
+			this.peer = peer;
+			this.tag = tag;
+		}
+
+		public void waitFor() throws CommException {
+			synchronized (this.owner) {
+				while (!this.done) {
+					try {
+						this.owner.wait();
+					} catch (InterruptedException e) {
+						throw new CommException(e);
+					}
+				}
+			}
+			if (this.error != null) {
+				throw this.error;
+			}
+		}
+
+		void complete(CommException error) {
+			synchronized (this.owner) {
+				this.error = error;
+				this.done = true;
+				this.owner.notifyAll();
+			}
+		}
+	}
+
+	private Group group;
+	private int rank;
+	// monitor notified whenever a request of this rank completes, shared
+	// with the communicators split from this one
+	private Object monitor;
+
+	private SharedMemoryCommunicator(Group group, int rank, Object monitor) {
+		this.group = group;
+		this.rank = rank;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * create the communicators of a group of size ranks
+	 */
+	public static Communicator[] create(int size) {
+		Group group = new Group(size);
+		Communicator[] comms = new Communicator[size];
+		for (int i = 0; i < size; i++) {
+			comms[i] = new SharedMemoryCommunicator(group, i, new Object());
+		}
+		return comms;
+	}
+
+	/**
+	 * run the task on size threads, one per rank, and wait for all of them.
+	 * Like an MPI job, the whole process exits if one of the ranks fails.
+	 */
+	public static void run(int size, final Task task) {
+		final Communicator[] comms = create(size);
+		Thread[] threads = new Thread[size];
+		for (int i = 0; i < size; i++) {
+			final Communicator comm = comms[i];
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						task.run(comm);
+					} catch (Throwable e) {
+						e.printStackTrace();
+						System.exit(-1);
+					}
+				}
+			}, "rank-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * copy a send into its matching receive and complete both
+	 */
+	private static void deliver(Message send, Message recv) {
+		CommException error = null;
+		if (send.count > recv.count) {
+			error = new CommException("Message of " + send.count
+					+ " elements truncated to " + recv.count);
+		} else {
+			try {
+				Buffers.copy(send.buf, send.offset, recv.buf, recv.offset,
+						send.count);
+			} catch (CommException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new CommException(e);
+			}
+		}
+		send.complete(error);
+		recv.complete(error);
+	}
+
+	private static Message match(LinkedList<Message> queue, int peer, int tag) {
+		Iterator<Message> it = queue.iterator();
+		while (it.hasNext()) {
+			Message m = it.next();
+			if (m.peer == peer && m.tag == tag) {
+				it.remove();
+				return m;
+			}
+		}
+		return null;
+	}
+
+	public int rank() {
+		return this.rank;
+	}
+
+	public int size() {
+		return this.group.mailboxes.length;
+	}
+
+	public void send(Object buf, int offset, int count, int dest, int tag)
+			throws CommException {
+		this.isend(buf, offset, count, dest, tag).waitFor();
+	}
+
+	public void recv(Object buf, int offset, int count, int source, int tag)
+			throws CommException {
+		this.irecv(buf, offset, count, source, tag).waitFor();
+	}
+
+	public CommRequest isend(Object buf, int offset, int count, int dest,
+			int tag) throws CommException {
+		Message send = new Message(this.monitor, buf, offset, count,
+				this.rank, tag);
+		Mailbox box = this.group.mailboxes[dest];
+		Message recv;
+		synchronized (box) {
+			recv = match(box.posted, this.rank, tag);
+			if (recv == null) {
+				box.unexpected.add(send);
+				return send;
+			}
+			deliver(send, recv);
+		}
+		return send;
+	}
+
+	public CommRequest irecv(Object buf, int offset, int count, int source,
+			int tag) throws CommException {
+		Message recv = new Message(this.monitor, buf, offset, count, source,
+				tag);
+		Mailbox box = this.group.mailboxes[this.rank];
+		synchronized (box) {
+			Message send = match(box.unexpected, source, tag);
+			if (send == null) {
+				box.posted.add(recv);
+				return recv;
+			}
+			deliver(send, recv);
+		}
+		return recv;
+	}
+
+	public int waitAny(CommRequest[] requests) throws CommException {
+		synchronized (this.monitor) {
+			while (true) {
+				boolean active = false;
+				for (int i = 0; i < requests.length; i++) {
+					Message m = (Message) requests[i];
+					if (m == null) {
+						continue;
+					}
+					active = true;
+					if (m.done) {
+						requests[i] = null;
+						if (m.error != null) {
+							throw m.error;
+						}
+						return i;
+					}
+				}
+				if (!active) {
+					throw new CommException("No active request");
+				}
+				try {
+					this.monitor.wait();
+				} catch (InterruptedException e) {
+					throw new CommException(e);
+				}
+			}
+		}
+	}
+
+	public void bcast(Object buf, int offset, int count, int root)
+			throws CommException {
+		if (this.rank == root) {
+			CommRequest[] requests = new CommRequest[this.size()];
+			for (int i = 0; i < requests.length; i++) {
+				if (i != root) {
+					requests[i] = this.isend(buf, offset, count, i, BCAST_TAG);
+				}
+			}
+			for (CommRequest r : requests) {
+				if (r != null) {
+					r.waitFor();
+				}
+			}
+		} else {
+			this.recv(buf, offset, count, root, BCAST_TAG);
+		}
+	}
+
+	public void reduce(Object sendbuf, int sendoffset, Object recvbuf,
+			int recvoffset, int count, ReduceOp op, int root)
+			throws CommException {
+		if (this.rank != root) {
+			this.send(sendbuf, sendoffset, count, root, REDUCE_TAG);
+			return;
+		}
+		// combined in rank order so the result does not depend on timing
+		Class<?> type = sendbuf.getClass().getComponentType();
+		Object result = Array.newInstance(type, count);
+		Object part = Array.newInstance(type, count);
+		System.arraycopy(sendbuf, sendoffset, result, 0, count);
+		for (int i = 0; i < this.size(); i++) {
+			if (i != root) {
+				this.recv(part, 0, count, i, REDUCE_TAG);
+				combine(result, part, count, op);
+			}
+		}
+		System.arraycopy(result, 0, recvbuf, recvoffset, count);
+	}
+
+	private static void combine(Object result, Object part, int count,
+			ReduceOp op) throws CommException {
+		if (result instanceof double[]) {
+			double[] r = (double[]) result, p = (double[]) part;
+			for (int i = 0; i < count; i++) {
+				r[i] = op == ReduceOp.SUM ? r[i] + p[i]
+						: op == ReduceOp.MIN ? Math.min(r[i], p[i]) : Math.max(
+								r[i], p[i]);
+			}
+		} else if (result instanceof float[]) {
+			float[] r = (float[]) result, p = (float[]) part;
+			for (int i = 0; i < count; i++) {
+				r[i] = op == ReduceOp.SUM ? r[i] + p[i]
+						: op == ReduceOp.MIN ? Math.min(r[i], p[i]) : Math.max(
+								r[i], p[i]);
+			}
+		} else if (result instanceof long[]) {
+			long[] r = (long[]) result, p = (long[]) part;
+			for (int i = 0; i < count; i++) {
+				r[i] = op == ReduceOp.SUM ? r[i] + p[i]
+						: op == ReduceOp.MIN ? Math.min(r[i], p[i]) : Math.max(
+								r[i], p[i]);
+			}
+		} else if (result instanceof int[]) {
+			int[] r = (int[]) result, p = (int[]) part;
+			for (int i = 0; i < count; i++) {
+				r[i] = op == ReduceOp.SUM ? r[i] + p[i]
+						: op == ReduceOp.MIN ? Math.min(r[i], p[i]) : Math.max(
+								r[i], p[i]);
+			}
+		} else {
+			throw new CommException("Cannot reduce "
+					+ result.getClass().getComponentType());
+		}
+	}
+
+	public void barrier() throws CommException {
+		try {
+			this.group.barrier.await();
+		} catch (InterruptedException e) {
+			throw new CommException(e);
+		} catch (BrokenBarrierException e) {
+			throw new CommException(e);
+		}
+	}
+
+	/**
+	 * every rank posts its color and key, the lowest rank of each color
+	 * creates the group which its members then join
+	 */
+	public Communicator split(int color, int key) throws CommException {
+		Object[] exchange = this.group.exchange;
+		exchange[this.rank] = new int[] { color, key };
+		this.barrier();
+		ArrayList<Integer> members = new ArrayList<Integer>();
+		for (int r = 0; r < this.size() && color >= 0; r++) {
+			if (((int[]) exchange[r])[0] == color) {
+				members.add(r);
+			}
+		}
+		final int[][] entries = new int[this.size()][];
+		for (int r = 0; r < this.size(); r++) {
+			entries[r] = (int[]) exchange[r];
+		}
+		Collections.sort(members, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int byKey = Integer.compare(entries[a][1], entries[b][1]);
+				return byKey != 0 ? byKey : Integer.compare(a, b);
+			}
+		});
+		this.barrier();
+		boolean creator = color >= 0
+				&& Collections.min(members) == this.rank;
+		exchange[this.rank] = creator ? new Group(members.size()) : null;
+		this.barrier();
+		Communicator part = null;
+		if (color >= 0) {
+			Group created = (Group) exchange[Collections.min(members)];
+			part = new SharedMemoryCommunicator(created,
+					members.indexOf(this.rank), this.monitor);
+		}
+		// nobody reads the slots any more once everyone is past this point
+		this.barrier();
+		return part;
+	}
+
+	public void finish() {
+	}
+}
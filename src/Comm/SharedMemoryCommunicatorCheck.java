@@ -0,0 +1,282 @@
+package Comm;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Cluster.Check;
+
+/**
+ * Checks SharedMemoryCommunicator on groups of several thread ranks:
+ * messages of one tag between two ranks arrive in the order they were
+ * sent, whether the send or the receive is posted first, arrays and direct
+ * buffers are copied into each other, a message too long for its receive
+ * fails both sides, the collectives give the values they are computed
+ * from at every root, and split() ranks and separates its groups.
+ */
+public class SharedMemoryCommunicatorCheck {
+
+	private static final int MESSAGES = 20;
+
+	public static void main(String[] args) {
+		for (final int size : new int[] { 1, 2, 3, 5 }) {
+			final AtomicInteger arrived = new AtomicInteger();
+			SharedMemoryCommunicator.run(size,
+					new SharedMemoryCommunicator.Task() {
+						public void run(Communicator comm) throws Exception {
+							check(comm, size, arrived);
+						}
+					});
+		}
+		System.out.println("SharedMemoryCommunicatorCheck: ok");
+	}
+
+	private static void check(Communicator comm, int size,
+			AtomicInteger arrived) throws CommException {
+		Check.that(comm.size() == size, "size");
+		for (int round = 1; round <= 3; round++) {
+			arrived.incrementAndGet();
+			comm.barrier();
+			Check.that(arrived.get() >= round * size, "barrier " + round
+					+ " of " + size + " ranks");
+		}
+		unexpected(comm);
+		posted(comm);
+		buffers(comm);
+		truncated(comm);
+		bcast(comm);
+		for (Class<?> type : new Class<?>[] { int.class, long.class,
+				float.class, double.class }) {
+			for (ReduceOp op : ReduceOp.values()) {
+				reduce(comm, type, op);
+			}
+		}
+		split(comm);
+	}
+
+	/**
+	 * every rank sends to every rank with two alternating tags before any
+	 * receive is posted, the tags are then received one after the other
+	 */
+	private static void unexpected(Communicator comm) throws CommException {
+		int rank = comm.rank();
+		CommRequest[] sends = new CommRequest[comm.size() * MESSAGES];
+		for (int m = 0; m < MESSAGES; m++) {
+			for (int dest = 0; dest < comm.size(); dest++) {
+				sends[m * comm.size() + dest] = comm.isend(
+						new int[] { rank, m }, 0, 2, dest, 1 + m % 2);
+			}
+		}
+		int[] message = new int[2];
+		for (int source = 0; source < comm.size(); source++) {
+			for (int tag = 2; tag >= 1; tag--) {
+				for (int m = tag - 1; m < MESSAGES; m += 2) {
+					comm.recv(message, 0, 2, source, tag);
+					Check.that(message[0] == source && message[1] == m,
+							"message " + m + " from " + source + " to " + rank
+									+ " received as " + message[1]);
+				}
+			}
+		}
+		for (CommRequest send : sends) {
+			send.waitFor();
+		}
+	}
+
+	/**
+	 * the receives are posted before the sends and completed by waitAny
+	 */
+	private static void posted(Communicator comm) throws CommException {
+		int rank = comm.rank();
+		int[][] messages = new int[comm.size() * MESSAGES][2];
+		CommRequest[] recvs = new CommRequest[messages.length];
+		for (int source = 0; source < comm.size(); source++) {
+			for (int m = 0; m < MESSAGES; m++) {
+				int i = source * MESSAGES + m;
+				recvs[i] = comm.irecv(messages[i], 0, 2, source, 3);
+			}
+		}
+		comm.barrier();
+		for (int m = 0; m < MESSAGES; m++) {
+			for (int dest = 0; dest < comm.size(); dest++) {
+				comm.send(new int[] { rank, m }, 0, 2, dest, 3);
+			}
+		}
+		boolean[] done = new boolean[recvs.length];
+		for (int n = 0; n < recvs.length; n++) {
+			int i = comm.waitAny(recvs);
+			Check.that(!done[i] && recvs[i] == null, "waitAny returns "
+					+ i + " once");
+			done[i] = true;
+		}
+		for (int i = 0; i < messages.length; i++) {
+			Check.that(messages[i][0] == i / MESSAGES
+					&& messages[i][1] == i % MESSAGES, "posted message " + i
+					+ " to " + rank);
+		}
+	}
+
+	/**
+	 * an array sent into a direct buffer, which is passed on into an array,
+	 * round a ring of the ranks
+	 */
+	private static void buffers(Communicator comm) throws CommException {
+		int size = comm.size();
+		int rank = comm.rank();
+		int next = (rank + 1) % size;
+		int previous = (rank + size - 1) % size;
+		double[] values = new double[10];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = rank * 10 + i + 0.5;
+		}
+		CommRequest send = comm.isend(values, 0, 10, next, 4);
+		DoubleBuffer direct = ByteBuffer.allocateDirect(8 * 13)
+				.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		comm.recv(direct, 2, 10, previous, 4);
+		send.waitFor();
+		Check.that(direct.get(1) == 0 && direct.get(12) == 0
+				&& direct.position() == 0, "direct buffer around the message");
+		for (int i = 0; i < 10; i++) {
+			Check.that(direct.get(2 + i) == previous * 10 + i + 0.5,
+					"array into a direct buffer");
+		}
+		send = comm.isend(direct, 2, 10, next, 5);
+		double[] array = new double[12];
+		comm.recv(array, 1, 10, previous, 5);
+		send.waitFor();
+		int second = (previous + size - 1) % size;
+		for (int i = 0; i < 10; i++) {
+			Check.that(array[1 + i] == second * 10 + i + 0.5,
+					"direct buffer into an array");
+		}
+		Check.that(array[0] == 0 && array[11] == 0, "array around the message");
+	}
+
+	private static void truncated(Communicator comm) throws CommException {
+		int size = comm.size();
+		int next = (comm.rank() + 1) % size;
+		int previous = (comm.rank() + size - 1) % size;
+		CommRequest send = comm.isend(new int[5], 0, 5, next, 6);
+		try {
+			comm.recv(new int[5], 0, 3, previous, 6);
+			Check.fail("receiving a truncated message");
+		} catch (CommException e) {
+		}
+		try {
+			send.waitFor();
+			Check.fail("sending a truncated message");
+		} catch (CommException e) {
+		}
+	}
+
+	private static void bcast(Communicator comm) throws CommException {
+		for (int root = 0; root < comm.size(); root++) {
+			int[] values = new int[12];
+			DoubleBuffer direct = ByteBuffer.allocateDirect(8 * 12)
+					.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			if (comm.rank() == root) {
+				for (int i = 2; i < 12; i++) {
+					values[i] = root * 100 + i;
+					direct.put(i, -values[i]);
+				}
+			}
+			comm.bcast(values, 2, 10, root);
+			comm.bcast(direct, 2, 10, root);
+			for (int i = 0; i < 12; i++) {
+				int expected = i < 2 ? 0 : root * 100 + i;
+				Check.that(values[i] == expected && direct.get(i) == -expected,
+						"bcast from " + root + " to " + comm.rank());
+			}
+		}
+	}
+
+	/**
+	 * reduce to every root, the values are small integers which every type
+	 * holds exactly
+	 */
+	private static void reduce(Communicator comm, Class<?> type, ReduceOp op)
+			throws CommException {
+		int count = 7;
+		Object values = Array.newInstance(type, count + 2);
+		for (int i = 0; i < count; i++) {
+			Array.setInt(values, 2 + i, value(comm.rank(), i));
+		}
+		for (int root = 0; root < comm.size(); root++) {
+			Object result = Array.newInstance(type, count + 1);
+			comm.reduce(values, 2, result, 1, count, op, root);
+			for (int i = 0; i < count && comm.rank() == root; i++) {
+				int expected = value(0, i);
+				for (int r = 1; r < comm.size(); r++) {
+					expected = op == ReduceOp.SUM ? expected + value(r, i)
+							: op == ReduceOp.MIN ? Math.min(expected, value(r,
+									i)) : Math.max(expected, value(r, i));
+				}
+				Check.that(Array.getDouble(result, 1 + i) == expected, op
+						+ " of " + type + " to " + root);
+			}
+		}
+	}
+
+	private static int value(int rank, int i) {
+		return (rank * 37 + i * 11) % 17 - 8;
+	}
+
+	/**
+	 * ranks split by parity in reverse order, rank 2 in no group. Messages
+	 * of a group do not match those of the whole group with the same tag,
+	 * and waitAny takes the requests of both.
+	 */
+	private static void split(Communicator comm) throws CommException {
+		int rank = comm.rank();
+		int color = rank == 2 ? -1 : rank % 2;
+		Communicator part = comm.split(color, -rank);
+		Communicator same = comm.split(0, 0);
+		Check.that(same.size() == comm.size() && same.rank() == rank,
+				"split with equal keys");
+		CommRequest[] sends = new CommRequest[2];
+		sends[0] = same.isend(new int[] { -1 - rank }, 0, 1, (rank + 1)
+				% same.size(), 7);
+		int[] message = new int[1];
+		if (color < 0) {
+			Check.that(part == null, "negative color");
+		} else {
+			int size = 0;
+			int index = 0;
+			int highest = -1;
+			int sum = 0;
+			for (int r = 0; r < comm.size(); r++) {
+				if (r != 2 && r % 2 == color) {
+					size++;
+					index += r > rank ? 1 : 0;
+					highest = Math.max(highest, r);
+					sum += r;
+				}
+			}
+			Check.that(part.size() == size && part.rank() == index, "rank "
+					+ rank + " split into " + part.rank() + " of "
+					+ part.size());
+			int[] root = { rank };
+			part.bcast(root, 0, 1, 0);
+			Check.that(root[0] == highest, "bcast within the split");
+			int[] total = new int[1];
+			part.reduce(new int[] { rank }, 0, total, 0, 1, ReduceOp.SUM, 0);
+			Check.that(part.rank() != 0 || total[0] == sum,
+					"reduce within the split");
+
+			int next = (part.rank() + 1) % part.size();
+			int previous = (part.rank() + part.size() - 1) % part.size();
+			sends[1] = part.isend(new int[] { rank }, 0, 1, next, 7);
+			part.recv(message, 0, 1, previous, 7);
+			Check.that(message[0] >= 0, "message of the split");
+		}
+		same.recv(message, 0, 1, (rank + same.size() - 1) % same.size(), 7);
+		Check.that(message[0] < 0, "message of the whole group");
+		for (int n = color < 0 ? 1 : 2; n > 0; n--) {
+			comm.waitAny(sends);
+		}
+		Check.that(sends[0] == null && sends[1] == null,
+				"waitAny over split communicators");
+	}
+}
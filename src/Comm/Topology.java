@@ -0,0 +1,452 @@
+package Comm;
+
+import java.lang.reflect.Array;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The ranks of a communicator grouped by the node they run on, with the
+ * lowest rank of every node as its leader. The collectives below are
+ * rooted at rank 0, which leads the first node: only the leaders exchange
+ * messages across nodes, one per node carrying the data of all of its
+ * ranks, and every rank talks to its leader over a node-local
+ * communicator.
+ *
+ * Arrays travel in one message per node, staged on the leader. NIO
+ * buffers, which are kept off the heap on purpose, travel in pieces of at
+ * most CHUNK elements instead: a leader forwards every piece as it comes
+ * in, so it holds no more than one piece of another rank's data.
+ */
+public class Topology {
+
+	// tag of the host names sent to rank 0 on the world communicator
+	private static final int HOST_TAG = 32000;
+	private static final int SCATTER_TAG = 1;
+	private static final int GATHER_TAG = 2;
+	// elements per message when NIO buffers are scattered or gathered
+	static final int CHUNK = 1 << 16;
+
+	/**
+	 * called on rank 0 by gather() once the part of a rank is in place
+	 */
+	public interface Arrival {
+		void arrived(int rank) throws CommException;
+	}
+
+	private int rank;
+	// ranks of this node, leader first
+	private Communicator node;
+	// the leaders in node order, null on the other ranks
+	private Communicator leaders;
+	// node of every rank
+	private int[] nodeOf;
+	// ranks of every node in ascending order, members[n][0] leads node n
+	private int[][] members;
+
+	/**
+	 * group the ranks of world by host name, or into nodes of ranksPerNode
+	 * consecutive ranks when it is positive. Every rank has to call it.
+	 */
+	public static Topology create(Communicator world, int ranksPerNode)
+			throws CommException {
+		int[] nodeOf = new int[world.size()];
+		if (ranksPerNode > 0) {
+			for (int r = 0; r < nodeOf.length; r++) {
+				nodeOf[r] = r / ranksPerNode;
+			}
+		} else {
+			nodeOf = hostNodes(world);
+		}
+		return new Topology(world, nodeOf);
+	}
+
+	/**
+	 * rank 0 collects the host name of every rank and numbers the hosts in
+	 * the order of their lowest rank
+	 */
+	private static int[] hostNodes(Communicator world) throws CommException {
+		int[] nodeOf = new int[world.size()];
+		byte[] name = hostName().getBytes();
+		int[] length = { name.length };
+		if (world.rank() != 0) {
+			world.send(length, 0, 1, 0, HOST_TAG);
+			world.send(name, 0, name.length, 0, HOST_TAG);
+		} else {
+			HashMap<String, Integer> hosts = new HashMap<String, Integer>();
+			hosts.put(new String(name), 0);
+			for (int r = 1; r < nodeOf.length; r++) {
+				world.recv(length, 0, 1, r, HOST_TAG);
+				byte[] host = new byte[length[0]];
+				world.recv(host, 0, host.length, r, HOST_TAG);
+				String key = new String(host);
+				if (!hosts.containsKey(key)) {
+					hosts.put(key, hosts.size());
+				}
+				nodeOf[r] = hosts.get(key);
+			}
+		}
+		world.bcast(nodeOf, 0, nodeOf.length, 0);
+		return nodeOf;
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+
+	/**
+	 * @param nodeOf
+	 *            node of every rank, numbered in the order of their lowest
+	 *            rank
+	 */
+	private Topology(Communicator world, int[] nodeOf) throws CommException {
+		this.rank = world.rank();
+		this.nodeOf = nodeOf;
+		int nodes = 0;
+		for (int n : nodeOf) {
+			nodes = Math.max(nodes, n + 1);
+		}
+		int[] sizes = new int[nodes];
+		for (int n : nodeOf) {
+			sizes[n]++;
+		}
+		this.members = new int[nodes][];
+		for (int n = 0; n < nodes; n++) {
+			this.members[n] = new int[sizes[n]];
+			sizes[n] = 0;
+		}
+		for (int r = 0; r < nodeOf.length; r++) {
+			this.members[nodeOf[r]][sizes[nodeOf[r]]++] = r;
+		}
+		this.node = world.split(nodeOf[this.rank], this.rank);
+		this.leaders = world.split(this.isLeader() ? 0 : -1, this.rank);
+	}
+
+	public int nodes() {
+		return this.members.length;
+	}
+
+	public boolean isLeader() {
+		return this.members[this.nodeOf[this.rank]][0] == this.rank;
+	}
+
+	/**
+	 * whether the grouping saves nothing: a single node, or one rank on
+	 * every node
+	 */
+	public boolean flat() {
+		return this.members.length == 1
+				|| this.members.length == this.nodeOf.length;
+	}
+
+	public Communicator node() {
+		return this.node;
+	}
+
+	public Communicator leaders() {
+		return this.leaders;
+	}
+
+	/**
+	 * broadcast from rank 0, first over the leaders and then on every node
+	 */
+	public void bcast(Object buf, int offset, int count) throws CommException {
+		if (this.leaders != null && this.members.length > 1) {
+			this.leaders.bcast(buf, offset, count, 0);
+		}
+		if (this.node.size() > 1) {
+			this.node.bcast(buf, offset, count, 0);
+		}
+	}
+
+	/**
+	 * reduce into recvbuf on rank 0, every node first reduces on its leader
+	 */
+	public void reduce(Object sendbuf, int sendoffset, Object recvbuf,
+			int recvoffset, int count, ReduceOp op) throws CommException {
+		Object partial = Array.newInstance(sendbuf.getClass()
+				.getComponentType(), count);
+		this.node.reduce(sendbuf, sendoffset, partial, 0, count, op, 0);
+		if (this.leaders != null) {
+			this.leaders.reduce(partial, 0, recvbuf, recvoffset, count, op, 0);
+		}
+	}
+
+	/**
+	 * hand rank r the counts[r] elements of buf on rank 0 starting at
+	 * offsets[r], they land in recvbuf at recvoffset. The parts of a node
+	 * travel to its leader in one message, which the leader splits up.
+	 * counts has to be known on every rank, offsets only on rank 0. When
+	 * one rank passes NIO buffers all of them have to.
+	 */
+	public void scatter(Object buf, int[] offsets, int[] counts,
+			Object recvbuf, int recvoffset) throws CommException {
+		if (buf instanceof Buffer || recvbuf instanceof Buffer) {
+			this.scatterChunks(buf, offsets, counts, recvbuf, recvoffset);
+			return;
+		}
+		ArrayList<CommRequest> requests = new ArrayList<CommRequest>();
+		int[] mine = this.members[this.nodeOf[this.rank]];
+		if (this.rank == 0) {
+			for (int n = 1; n < this.members.length; n++) {
+				int[] m = this.members[n];
+				if (m.length == 1) {
+					requests.add(this.leaders.isend(buf, offsets[m[0]],
+							counts[m[0]], n, SCATTER_TAG));
+					continue;
+				}
+				Object staging = staging(buf, total(m, counts));
+				int at = 0;
+				for (int r : m) {
+					Buffers.copy(buf, offsets[r], staging, at, counts[r]);
+					at += counts[r];
+				}
+				requests.add(this.leaders.isend(staging, 0, at, n,
+						SCATTER_TAG));
+			}
+			for (int p = 1; p < mine.length; p++) {
+				requests.add(this.node.isend(buf, offsets[mine[p]],
+						counts[mine[p]], p, SCATTER_TAG));
+			}
+			Buffers.copy(buf, offsets[0], recvbuf, recvoffset, counts[0]);
+		} else if (this.isLeader() && mine.length == 1) {
+			this.leaders.recv(recvbuf, recvoffset, counts[this.rank], 0,
+					SCATTER_TAG);
+		} else if (this.isLeader()) {
+			int size = total(mine, counts);
+			Object staging = staging(recvbuf, size);
+			this.leaders.recv(staging, 0, size, 0, SCATTER_TAG);
+			Buffers.copy(staging, 0, recvbuf, recvoffset, counts[this.rank]);
+			int at = counts[this.rank];
+			for (int p = 1; p < mine.length; p++) {
+				requests.add(this.node.isend(staging, at, counts[mine[p]], p,
+						SCATTER_TAG));
+				at += counts[mine[p]];
+			}
+		} else {
+			this.node.recv(recvbuf, recvoffset, counts[this.rank], 0,
+					SCATTER_TAG);
+		}
+		for (CommRequest r : requests) {
+			r.waitFor();
+		}
+	}
+
+	/**
+	 * collect the counts[r] elements of every rank r into recvbuf on rank 0
+	 * at offsets[r]. A leader collects the parts of its node and forwards
+	 * them in one message; rank 0 takes the messages in the order they
+	 * arrive and reports every part to arrival, which may be null. counts
+	 * has to be known on every rank, offsets and recvbuf only on rank 0.
+	 * When one rank passes NIO buffers all of them have to.
+	 */
+	public void gather(Object sendbuf, int sendoffset, Object recvbuf,
+			int[] offsets, int[] counts, Arrival arrival) throws CommException {
+		if (sendbuf instanceof Buffer || recvbuf instanceof Buffer) {
+			this.gatherChunks(sendbuf, sendoffset, recvbuf, offsets, counts,
+					arrival);
+			return;
+		}
+		int[] mine = this.members[this.nodeOf[this.rank]];
+		if (this.rank == 0) {
+			Buffers.copy(sendbuf, sendoffset, recvbuf, offsets[0], counts[0]);
+			if (arrival != null) {
+				arrival.arrived(0);
+			}
+			// requests of the own node's ranks first, then one per node
+			int direct = mine.length - 1;
+			CommRequest[] requests = new CommRequest[direct
+					+ this.members.length - 1];
+			Object[] stagings = new Object[requests.length];
+			for (int p = 1; p < mine.length; p++) {
+				requests[p - 1] = this.node.irecv(recvbuf, offsets[mine[p]],
+						counts[mine[p]], p, GATHER_TAG);
+			}
+			for (int n = 1; n < this.members.length; n++) {
+				int[] m = this.members[n];
+				if (m.length == 1) {
+					requests[direct + n - 1] = this.leaders.irecv(recvbuf,
+							offsets[m[0]], counts[m[0]], n, GATHER_TAG);
+				} else {
+					int size = total(m, counts);
+					stagings[direct + n - 1] = staging(recvbuf, size);
+					requests[direct + n - 1] = this.leaders.irecv(
+							stagings[direct + n - 1], 0, size, n, GATHER_TAG);
+				}
+			}
+			for (int k = 0; k < requests.length; k++) {
+				int done = this.node.waitAny(requests);
+				int[] ranks = done < direct ? new int[] { mine[done + 1] }
+						: this.members[done - direct + 1];
+				if (stagings[done] != null) {
+					int at = 0;
+					for (int r : ranks) {
+						Buffers.copy(stagings[done], at, recvbuf, offsets[r],
+								counts[r]);
+						at += counts[r];
+					}
+				}
+				for (int r : ranks) {
+					if (arrival != null) {
+						arrival.arrived(r);
+					}
+				}
+			}
+		} else if (this.isLeader() && mine.length == 1) {
+			this.leaders.send(sendbuf, sendoffset, counts[this.rank], 0,
+					GATHER_TAG);
+		} else if (this.isLeader()) {
+			int size = total(mine, counts);
+			Object staging = staging(sendbuf, size);
+			Buffers.copy(sendbuf, sendoffset, staging, 0, counts[this.rank]);
+			CommRequest[] requests = new CommRequest[mine.length - 1];
+			int at = counts[this.rank];
+			for (int p = 1; p < mine.length; p++) {
+				requests[p - 1] = this.node.irecv(staging, at,
+						counts[mine[p]], p, GATHER_TAG);
+				at += counts[mine[p]];
+			}
+			for (CommRequest r : requests) {
+				r.waitFor();
+			}
+			this.leaders.send(staging, 0, size, 0, GATHER_TAG);
+		} else {
+			this.node.send(sendbuf, sendoffset, counts[this.rank], 0,
+					GATHER_TAG);
+		}
+	}
+
+	/**
+	 * scatter() for NIO buffers: rank 0 sends the part of every rank in
+	 * pieces, rank by rank, and a leader passes the pieces of its other
+	 * ranks on through one piece sized array
+	 */
+	private void scatterChunks(Object buf, int[] offsets, int[] counts,
+			Object recvbuf, int recvoffset) throws CommException {
+		int[] mine = this.members[this.nodeOf[this.rank]];
+		if (this.rank == 0) {
+			Buffers.copy(buf, offsets[0], recvbuf, recvoffset, counts[0]);
+			for (int p = 1; p < mine.length; p++) {
+				sendChunks(this.node, buf, offsets[mine[p]], counts[mine[p]],
+						p, SCATTER_TAG);
+			}
+			for (int n = 1; n < this.members.length; n++) {
+				for (int r : this.members[n]) {
+					sendChunks(this.leaders, buf, offsets[r], counts[r], n,
+							SCATTER_TAG);
+				}
+			}
+		} else if (this.isLeader()) {
+			recvChunks(this.leaders, recvbuf, recvoffset, counts[this.rank], 0,
+					SCATTER_TAG);
+			Object piece = null;
+			for (int p = 1; p < mine.length; p++) {
+				if (piece == null) {
+					piece = staging(recvbuf, CHUNK);
+				}
+				relay(this.leaders, 0, this.node, p, piece, counts[mine[p]],
+						SCATTER_TAG);
+			}
+		} else {
+			recvChunks(this.node, recvbuf, recvoffset, counts[this.rank], 0,
+					SCATTER_TAG);
+		}
+	}
+
+	/**
+	 * gather() for NIO buffers: rank 0 takes the parts in rank order per
+	 * node, in pieces, and a leader passes the pieces of its other ranks on
+	 * through one piece sized array
+	 */
+	private void gatherChunks(Object sendbuf, int sendoffset, Object recvbuf,
+			int[] offsets, int[] counts, Arrival arrival) throws CommException {
+		int[] mine = this.members[this.nodeOf[this.rank]];
+		if (this.rank == 0) {
+			Buffers.copy(sendbuf, sendoffset, recvbuf, offsets[0], counts[0]);
+			if (arrival != null) {
+				arrival.arrived(0);
+			}
+			for (int p = 1; p < mine.length; p++) {
+				recvChunks(this.node, recvbuf, offsets[mine[p]],
+						counts[mine[p]], p, GATHER_TAG);
+				if (arrival != null) {
+					arrival.arrived(mine[p]);
+				}
+			}
+			for (int n = 1; n < this.members.length; n++) {
+				for (int r : this.members[n]) {
+					recvChunks(this.leaders, recvbuf, offsets[r], counts[r], n,
+							GATHER_TAG);
+					if (arrival != null) {
+						arrival.arrived(r);
+					}
+				}
+			}
+		} else if (this.isLeader()) {
+			sendChunks(this.leaders, sendbuf, sendoffset, counts[this.rank], 0,
+					GATHER_TAG);
+			Object piece = null;
+			for (int p = 1; p < mine.length; p++) {
+				if (piece == null) {
+					piece = staging(sendbuf, CHUNK);
+				}
+				relay(this.node, p, this.leaders, 0, piece, counts[mine[p]],
+						GATHER_TAG);
+			}
+		} else {
+			sendChunks(this.node, sendbuf, sendoffset, counts[this.rank], 0,
+					GATHER_TAG);
+		}
+	}
+
+	private static void sendChunks(Communicator comm, Object buf, int offset,
+			int count, int dest, int tag) throws CommException {
+		for (int c = 0; c < count; c += CHUNK) {
+			comm.send(buf, offset + c, Math.min(CHUNK, count - c), dest, tag);
+		}
+	}
+
+	private static void recvChunks(Communicator comm, Object buf, int offset,
+			int count, int source, int tag) throws CommException {
+		for (int c = 0; c < count; c += CHUNK) {
+			comm.recv(buf, offset + c, Math.min(CHUNK, count - c), source, tag);
+		}
+	}
+
+	/**
+	 * pass count elements from source on one communicator to dest on
+	 * another, one piece at a time
+	 */
+	private static void relay(Communicator from, int source, Communicator to,
+			int dest, Object piece, int count, int tag) throws CommException {
+		for (int c = 0; c < count; c += CHUNK) {
+			int length = Math.min(CHUNK, count - c);
+			from.recv(piece, 0, length, source, tag);
+			to.send(piece, 0, length, dest, tag);
+		}
+	}
+
+	private static int total(int[] ranks, int[] counts) {
+		int total = 0;
+		for (int r : ranks) {
+			total += counts[r];
+		}
+		return total;
+	}
+
+	/**
+	 * a heap array for count elements of the type of buf
+	 */
+	private static Object staging(Object buf, int count) throws CommException {
+		if (buf instanceof Buffer) {
+			return Buffers.array((Buffer) buf, count);
+		}
+		return Array.newInstance(buf.getClass().getComponentType(), count);
+	}
+}
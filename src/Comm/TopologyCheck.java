@@ -0,0 +1,218 @@
+package Comm;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import Cluster.Check;
+
+/**
+ * Checks the collectives of Topology over thread ranks split into fake
+ * nodes of ranksPerNode ranks, the last one smaller when they do not come
+ * out even. Every collective is compared with what it is computed from
+ * and with a topology of one node, the reductions also with the reduce of
+ * the communicator itself. Scatter and gather run on arrays and on direct
+ * buffers with parts of several pieces, so the leaders relay them.
+ */
+public class TopologyCheck {
+
+	public static void main(String[] args) {
+		for (int size : new int[] { 1, 3, 5, 7 }) {
+			for (final int ranksPerNode : new int[] { 0, 1, 2, 3 }) {
+				SharedMemoryCommunicator.run(size,
+						new SharedMemoryCommunicator.Task() {
+							public void run(Communicator comm)
+									throws Exception {
+								check(comm, ranksPerNode);
+							}
+						});
+			}
+		}
+		System.out.println("TopologyCheck: ok");
+	}
+
+	private static void check(Communicator comm, int ranksPerNode)
+			throws CommException {
+		int size = comm.size();
+		int rank = comm.rank();
+		Topology topology = Topology.create(comm, ranksPerNode);
+		Topology flat = Topology.create(comm, 0);
+		String what = size + " ranks in nodes of " + ranksPerNode;
+		int perNode = ranksPerNode > 0 ? ranksPerNode : size;
+		Check.that(topology.nodes() == (size + perNode - 1) / perNode
+				&& topology.isLeader() == (rank % perNode == 0)
+				&& flat.nodes() == 1 && flat.flat(), what + " nodes");
+		Check.that(topology.flat() == (perNode == 1 || perNode >= size),
+				what + " flat");
+		Check.that(topology.node().size() == Math.min(perNode, size - rank
+				/ perNode * perNode), what + " node size");
+
+		bcast(topology, rank, what);
+		for (Class<?> type : new Class<?>[] { int.class, long.class,
+				double.class }) {
+			for (ReduceOp op : ReduceOp.values()) {
+				reduce(comm, topology, flat, type, op, what);
+			}
+		}
+		int[] counts = new int[size];
+		for (int r = 0; r < size; r++) {
+			counts[r] = r == 0 ? 5 : r == 1 ? 0 : 2 * Topology.CHUNK + r;
+		}
+		for (boolean nio : new boolean[] { false, true }) {
+			String how = what + (nio ? " over direct buffers" : "");
+			scatter(topology, flat, rank, counts, nio, how);
+			gather(topology, flat, rank, counts, nio, how);
+		}
+	}
+
+	private static void bcast(Topology topology, int rank, String what)
+			throws CommException {
+		int[] values = new int[12];
+		DoubleBuffer direct = direct(12);
+		for (int i = 2; i < 12 && rank == 0; i++) {
+			values[i] = 100 + i;
+			set(direct, i, -values[i]);
+		}
+		topology.bcast(values, 2, 10);
+		topology.bcast(direct, 2, 10);
+		for (int i = 0; i < 12; i++) {
+			int expected = i < 2 ? 0 : 100 + i;
+			Check.that(values[i] == expected && direct.get(i) == -expected,
+					what + " bcast to " + rank);
+		}
+	}
+
+	/**
+	 * small integers which every type holds exactly, so the order the nodes
+	 * combine them in does not matter
+	 */
+	private static void reduce(Communicator comm, Topology topology,
+			Topology flat, Class<?> type, ReduceOp op, String what)
+			throws CommException {
+		int count = 7;
+		Object values = Array.newInstance(type, count + 2);
+		for (int i = 0; i < count; i++) {
+			Array.setInt(values, 2 + i, (comm.rank() * 37 + i * 11) % 17 - 8);
+		}
+		Object result = Array.newInstance(type, count + 1);
+		Object flatResult = Array.newInstance(type, count + 1);
+		Object expected = Array.newInstance(type, count + 1);
+		topology.reduce(values, 2, result, 1, count, op);
+		flat.reduce(values, 2, flatResult, 1, count, op);
+		comm.reduce(values, 2, expected, 1, count, op, 0);
+		for (int i = 0; i < count + 1 && comm.rank() == 0; i++) {
+			Check.that(Array.getDouble(result, i) == Array.getDouble(
+					expected, i) && Array.getDouble(flatResult, i) == Array
+					.getDouble(expected, i), what + " " + op + " of " + type);
+		}
+	}
+
+	/**
+	 * rank 0 holds the parts in reverse rank order with gaps between them
+	 */
+	private static int[] offsets(int[] counts) {
+		int[] offsets = new int[counts.length];
+		int at = 1;
+		for (int r = counts.length - 1; r >= 0; r--) {
+			offsets[r] = at;
+			at += counts[r] + 3;
+		}
+		return offsets;
+	}
+
+	private static void scatter(Topology topology, Topology flat, int rank,
+			int[] counts, boolean nio, String what) throws CommException {
+		int[] offsets = offsets(counts);
+		int length = offsets[0] + counts[0] + 3;
+		Object buf = null;
+		if (rank == 0) {
+			buf = allocate(nio, length);
+			for (int i = 0; i < length; i++) {
+				set(buf, i, i + 0.25);
+			}
+		}
+		Object recvbuf = allocate(nio, counts[rank] + 3);
+		Object flatRecvbuf = allocate(nio, counts[rank] + 3);
+		topology.scatter(buf, offsets, counts, recvbuf, 2);
+		flat.scatter(buf, offsets, counts, flatRecvbuf, 2);
+		for (int i = 0; i < counts[rank]; i++) {
+			double expected = offsets[rank] + i + 0.25;
+			if (get(recvbuf, 2 + i) != expected
+					|| get(flatRecvbuf, 2 + i) != expected) {
+				Check.fail(what + " scatter to " + rank + " at " + i);
+			}
+		}
+		Check.that(get(recvbuf, 1) == 0 && get(recvbuf, 2 + counts[rank])
+				== 0, what + " scatter around the part of " + rank);
+	}
+
+	private static void gather(Topology topology, Topology flat, int rank,
+			final int[] counts, boolean nio, String what)
+			throws CommException {
+		final int[] offsets = offsets(counts);
+		int length = offsets[0] + counts[0] + 3;
+		Object sendbuf = allocate(nio, 1 + counts[rank]);
+		for (int i = 0; i < counts[rank]; i++) {
+			set(sendbuf, 1 + i, rank * 1e6 + i);
+		}
+		final Object recvbuf = rank == 0 ? allocate(nio, length) : null;
+		Object flatRecvbuf = rank == 0 ? allocate(nio, length) : null;
+		final int[] arrived = new int[counts.length];
+		final String gathered = what + " gather";
+		topology.gather(sendbuf, 1, recvbuf, offsets, counts,
+				new Topology.Arrival() {
+					public void arrived(int r) {
+						arrived[r]++;
+						for (int i = 0; i < counts[r]; i++) {
+							if (get(recvbuf, offsets[r] + i) != r * 1e6 + i) {
+								Check.fail(gathered + " from " + r
+										+ " before it arrived");
+							}
+						}
+					}
+				});
+		flat.gather(sendbuf, 1, flatRecvbuf, offsets, counts, null);
+		if (rank != 0) {
+			return;
+		}
+		int[] once = new int[counts.length];
+		Arrays.fill(once, 1);
+		Check.that(Arrays.equals(arrived, once), gathered + " arrivals "
+				+ Arrays.toString(arrived));
+		for (int i = 0; i < length; i++) {
+			if (get(recvbuf, i) != get(flatRecvbuf, i)) {
+				Check.fail(gathered + " differs from one node at " + i);
+			}
+		}
+		for (int r = 0; r < counts.length; r++) {
+			Check.that(get(recvbuf, offsets[r] - 1) == 0, gathered
+					+ " in front of the part of " + r);
+		}
+	}
+
+	private static DoubleBuffer direct(int length) {
+		return ByteBuffer.allocateDirect(8 * length)
+				.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	private static Object allocate(boolean nio, int length) {
+		return nio ? direct(length) : new double[length];
+	}
+
+	private static double get(Object buf, int i) {
+		if (buf instanceof DoubleBuffer) {
+			return ((DoubleBuffer) buf).get(i);
+		}
+		return ((double[]) buf)[i];
+	}
+
+	private static void set(Object buf, int i, double value) {
+		if (buf instanceof DoubleBuffer) {
+			((DoubleBuffer) buf).put(i, value);
+		} else {
+			((double[]) buf)[i] = value;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package DNA;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks that MPIDNACluster labels the strands the same with and without
+ * -cache. The runs start from the same random seeds on thread ranks and
+ * iterate several times over noisy clusters, so the cache has entries of
+ * seeds which did and which did not change to get wrong. The metrics, the
+ * candidates pre-filter, the pipelined mode and the restarts of a sweep,
+ * which keep a cache each, are covered.
+ */
+public class DistanceCacheCheck {
+
+	private static final String[][] CONFIGS = { { "-metric", "edit" },
+			{ "-metric", "hamming" }, { "-candidates", "2" },
+			{ "-pipelined", "-chunk", "50" }, { "-sweep" } };
+
+	public static void main(String[] args) throws IOException {
+		File data = File.createTempFile("strands", ".txt");
+		data.deleteOnExit();
+		write(data, new Random(1));
+		for (String[] config : CONFIGS) {
+			boolean sweep = config[0].equals("-sweep");
+			String[] labels = new String[2];
+			String[] reports = new String[2];
+			for (int cache = 0; cache < 2; cache++) {
+				File output = File.createTempFile("labels", ".txt");
+				output.deleteOnExit();
+				ArrayList<String> arguments = new ArrayList<String>(
+						Arrays.asList("-threads", "3", "-seed", "5", "-maxIter",
+								"15"));
+				arguments.addAll(Arrays.asList(config));
+				if (cache == 1) {
+					arguments.add("-cache");
+				}
+				arguments.add(data.getPath());
+				arguments.add(sweep ? "3,4" : "4");
+				if (sweep) {
+					arguments.add("2");
+				}
+				arguments.add(output.getPath());
+				reports[cache] = run(arguments.toArray(new String[0]));
+				// a sweep writes the labels of every K to a file of its own
+				labels[cache] = "";
+				for (String suffix : sweep ? new String[] { ".3", ".4" }
+						: new String[] { "" }) {
+					File file = new File(output.getPath() + suffix);
+					labels[cache] += new String(Files.readAllBytes(file
+							.toPath()));
+					file.delete();
+				}
+			}
+			String what = Arrays.toString(config);
+			Check.that(!labels[0].isEmpty() && labels[0].equals(labels[1]),
+					what + " labels with the cache");
+			Check.that(reports[0].equals(reports[1]), what + " reported "
+					+ reports[1] + " with the cache instead of " + reports[0]);
+			Check.that(sweep || iterations(reports[0]) >= 3, what
+					+ " iterations " + reports[0]);
+		}
+		System.out.println("DistanceCacheCheck: ok");
+	}
+
+	/**
+	 * strands around four random centers with substitutions, insertions and
+	 * deletions, one per line
+	 */
+	private static void write(File data, Random rand) throws IOException {
+		String[] centers = new String[4];
+		for (int c = 0; c < centers.length; c++) {
+			StringBuilder center = new StringBuilder();
+			for (int i = 0; i < 80; i++) {
+				center.append("ACGT".charAt(rand.nextInt(4)));
+			}
+			centers[c] = center.toString();
+		}
+		FileWriter out = new FileWriter(data);
+		for (int s = 0; s < 400; s++) {
+			String center = centers[rand.nextInt(centers.length)];
+			StringBuilder strand = new StringBuilder();
+			for (int i = 0; i < center.length(); i++) {
+				double change = rand.nextDouble();
+				if (change < 0.2) {
+					strand.append("ACGT".charAt(rand.nextInt(4)));
+				} else if (change < 0.23) {
+					strand.append(center.charAt(i)).append(
+							"ACGT".charAt(rand.nextInt(4)));
+				} else if (change >= 0.26) {
+					strand.append(center.charAt(i));
+				}
+			}
+			out.write(strand + "\n");
+		}
+		out.close();
+	}
+
+	/**
+	 * run MPIDNACluster and return what the master reported about stopping,
+	 * the rest of its output is dropped
+	 */
+	private static String run(String[] arguments) {
+		PrintStream console = System.out;
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(log, true));
+		try {
+			MPIDNACluster.main(arguments);
+		} catch (Exception e) {
+			System.setOut(console);
+			e.printStackTrace();
+			Check.fail(Arrays.toString(arguments));
+		} finally {
+			System.setOut(console);
+		}
+		StringBuilder report = new StringBuilder();
+		for (String line : log.toString().split("\n")) {
+			if (line.startsWith("Stopped") || line.startsWith("K = ")) {
+				report.append(line).append('\n');
+			}
+		}
+		return report.toString();
+	}
+
+	private static int iterations(String report) {
+		String[] words = report.split(" ");
+		return words.length > 2 ? Integer.parseInt(words[2]) : 0;
+	}
+}
@@ -1,36 +1,213 @@
 package DNA;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Random;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.SplittableRandom;
 
+/**
+ * Writes random DNA strands, one per line. Every line is a record of the
+ * same size, so the threads generate disjoint ranges of strands and write
+ * them at their own offsets of the file.
+ *
+ * With -clusters K the strands are mutated copies of K random ancestors,
+ * each base substituted with the -mutation rate, and -labels writes the
+ * ancestor of every strand to a second file, one per line.
+ */
 public class GenerateDNAStrand {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+	// bytes generated before each write
+	private static final int BATCH_BYTES = 1 << 20;
+
+	private long number;
+	private int length;
+	private byte[][] ancestors;
+	private double mutation;
+	private FileChannel output;
+	private FileChannel labels;
+	// digits of a label record without the newline
+	private int labelWidth;
+
 	public static void main(String args[]) {
-		if (args.length != 3) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int clusters = 0;
+		double mutation = 0.05;
+		long seed = System.currentTimeMillis();
+		String labelFile = null;
+		int pos = 0;
+		while (args.length - pos > 3 && args[pos].startsWith("-")) {
+			String option = args[pos++];
+			if (option.equals("-threads")) {
+				threads = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-clusters")) {
+				clusters = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-mutation")) {
+				mutation = Double.parseDouble(args[pos++]);
+			} else if (option.equals("-seed")) {
+				seed = Long.parseLong(args[pos++]);
+			} else if (option.equals("-labels")) {
+				labelFile = args[pos++];
+			} else {
+				pos = args.length;
+			}
+		}
+		if (args.length - pos != 3 || (labelFile != null && clusters <= 0)) {
 			System.out
-					.println("Usage: GenerateDNAStrand <number> <DNALength> <FileName>");
+					.println("Usage: GenerateDNAStrand [-threads <n>] [-clusters <K> [-mutation <rate>] [-labels <FileName>]] [-seed <s>] <number> <DNALength> <FileName>");
 			System.exit(-1);
 		}
-		int number = Integer.parseInt(args[0]);
-		int length = Integer.parseInt(args[1]);
-		char[] seg = { 'A', 'C', 'G', 'T' };
+
+		GenerateDNAStrand generator = new GenerateDNAStrand();
+		generator.number = Long.parseLong(args[pos]);
+		generator.length = Integer.parseInt(args[pos + 1]);
+		generator.mutation = mutation;
+		SplittableRandom rand = new SplittableRandom(seed);
+		if (clusters > 0) {
+			generator.ancestors = new byte[clusters][generator.length];
+			for (byte[] ancestor : generator.ancestors) {
+				generator.fill(rand, ancestor, 0);
+			}
+		}
 		try {
-			BufferedWriter bf = new BufferedWriter(new FileWriter(new File(
-					args[2])));
-			char[] chars = new char[length];
-			Random rand = new Random(System.currentTimeMillis());
-			for (int i = 0; i < number; i++) {
-				for (int j = 0; j < length; j++) {
-					chars[j] = seg[rand.nextInt(4)];
-				}
-				bf.write(new String(chars) + "\n");
+			generator.output = open(args[pos + 2], generator.number
+					* (generator.length + 1));
+			if (labelFile != null) {
+				generator.labelWidth = String.valueOf(clusters - 1).length();
+				generator.labels = open(labelFile, generator.number
+						* (generator.labelWidth + 1));
+			}
+			generator.run(threads, rand);
+			generator.output.close();
+			if (generator.labels != null) {
+				generator.labels.close();
 			}
-			bf.close();
 		} catch (IOException e) {
 			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	private static FileChannel open(String filename, long size)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "rw");
+		file.setLength(size);
+		return file.getChannel();
+	}
+
+	/**
+	 * generate strands [from, to) on each thread, every thread draws from
+	 * its own split of the generator
+	 */
+	private void run(int threads, SplittableRandom rand) {
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final long from = this.number * t / threads;
+			final long to = this.number * (t + 1) / threads;
+			final SplittableRandom random = rand.split();
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						GenerateDNAStrand.this.write(from, to, random);
+					} catch (IOException e) {
+						e.printStackTrace();
+						System.exit(-1);
+					}
+				}
+			});
+			workers[t].start();
 		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
 
+	private void write(long from, long to, SplittableRandom rand)
+			throws IOException {
+		int record = this.length + 1;
+		int batch = Math.max(1, BATCH_BYTES / record);
+		ByteBuffer strands = ByteBuffer.allocate(batch * record);
+		ByteBuffer labels = ByteBuffer.allocate(batch * (this.labelWidth + 1));
+		byte[] bytes = strands.array();
+		for (long first = from; first < to; first += batch) {
+			int count = (int) Math.min(batch, to - first);
+			labels.clear();
+			for (int i = 0; i < count; i++) {
+				int offset = i * record;
+				if (this.ancestors == null) {
+					this.fill(rand, bytes, offset);
+				} else {
+					int label = rand.nextInt(this.ancestors.length);
+					System.arraycopy(this.ancestors[label], 0, bytes, offset,
+							this.length);
+					this.mutate(rand, bytes, offset);
+					this.putLabel(labels, label);
+				}
+				bytes[offset + this.length] = '\n';
+			}
+			strands.clear().limit(count * record);
+			writeFully(this.output, strands, first * record);
+			if (this.labels != null) {
+				labels.flip();
+				writeFully(this.labels, labels, first * (this.labelWidth + 1));
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * random bases for dest[offset, offset + length), 32 from each long
+	 */
+	private void fill(SplittableRandom rand, byte[] dest, int offset) {
+		long bits = 0;
+		for (int j = 0; j < this.length; j++) {
+			if ((j & 31) == 0) {
+				bits = rand.nextLong();
+			}
+			dest[offset + j] = BASES[(int) (bits & 3)];
+			bits >>>= 2;
+		}
+	}
+
+	/**
+	 * substitute each base with probability mutation by one of the three
+	 * others, jumping from one substitution to the next with geometric gaps
+	 */
+	private void mutate(SplittableRandom rand, byte[] dest, int offset) {
+		if (this.mutation <= 0) {
+			return;
+		}
+		double scale = this.mutation < 1 ? 1 / Math.log(1 - this.mutation) : 0;
+		long j = (long) (Math.log(1 - rand.nextDouble()) * scale);
+		while (j < this.length) {
+			int p = offset + (int) j;
+			int base = 0;
+			while (BASES[base] != dest[p]) {
+				base++;
+			}
+			dest[p] = BASES[(base + 1 + rand.nextInt(3)) & 3];
+			j += 1 + (long) (Math.log(1 - rand.nextDouble()) * scale);
+		}
+	}
+
+	private void putLabel(ByteBuffer labels, int label) {
+		for (int d = this.labelWidth - 1; d >= 0; d--) {
+			labels.put(labels.position() + d, (byte) ('0' + label % 10));
+			label /= 10;
+		}
+		labels.position(labels.position() + this.labelWidth);
+		labels.put((byte) '\n');
 	}
 }
@@ -0,0 +1,109 @@
+package DNA;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import Cluster.Check;
+
+/**
+ * Runs the generator on temporary files and checks the records over
+ * several batches and threads: every line holds length bases, a seed gives
+ * the same file again, strands of one planted cluster only differ by their
+ * mutations and those come at the requested rate.
+ */
+public class GenerateDNAStrandCheck {
+
+	public static void main(String[] args) throws IOException {
+		int number = 25000;
+		int length = 100;
+		byte[] plain = generate("-threads 3 -seed 5", number, length);
+		Check.that(Arrays.equals(plain, generate("-threads 3 -seed 5", number,
+				length)), "same seed, same strands");
+		records(plain, number, length, "ACGT");
+
+		// without mutations every strand is its ancestor
+		File labelFile = File.createTempFile("GenerateDNAStrandCheck", ".txt");
+		labelFile.deleteOnExit();
+		String labelName = labelFile.getPath();
+		byte[][] strands = records(generate("-threads 4 -clusters 12 "
+				+ "-mutation 0 -seed 5 -labels " + labelName, number, length),
+				number, length, "ACGT");
+		byte[][] labels = records(Files.readAllBytes(labelFile.toPath()),
+				number, 2, "0123456789");
+		byte[][] ancestors = new byte[12][];
+		for (int i = 0; i < number; i++) {
+			int label = Integer.parseInt(new String(labels[i]));
+			Check.that(label < 12, "label " + label);
+			if (ancestors[label] == null) {
+				ancestors[label] = strands[i];
+			}
+			Check.that(Arrays.equals(ancestors[label], strands[i]), "strand "
+					+ i + " differs from its ancestor without mutations");
+		}
+
+		// the ancestor is the majority base at every position of a cluster
+		double rate = 0.2;
+		strands = records(generate("-threads 2 -clusters 3 -mutation " + rate
+				+ " -seed 5 -labels " + labelName, number, length),
+				number, length, "ACGT");
+		labels = records(Files.readAllBytes(labelFile.toPath()), number, 1,
+				"012");
+		long mutations = 0;
+		int[][][] counts = new int[3][length][256];
+		int[] sizes = new int[3];
+		for (int i = 0; i < number; i++) {
+			sizes[labels[i][0] - '0']++;
+			for (int j = 0; j < length; j++) {
+				counts[labels[i][0] - '0'][j][strands[i][j]]++;
+			}
+		}
+		for (int i = 0; i < number; i++) {
+			int label = labels[i][0] - '0';
+			for (int j = 0; j < length; j++) {
+				if (counts[label][j][strands[i][j]] * 2 < sizes[label]) {
+					mutations++;
+				}
+			}
+		}
+		double observed = (double) mutations / number / length;
+		Check.that(Math.abs(observed - rate) < 0.005, "mutation rate "
+				+ observed + " instead of " + rate);
+		System.out.println("GenerateDNAStrandCheck: ok");
+	}
+
+	/**
+	 * run the generator with the options and return the file it wrote
+	 */
+	private static byte[] generate(String options, int number, int length)
+			throws IOException {
+		File file = File.createTempFile("GenerateDNAStrandCheck", ".txt");
+		file.deleteOnExit();
+		String[] args = (options + " " + number + " " + length + " " + file
+				.getPath()).split(" ");
+		GenerateDNAStrand.main(args);
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * split a file into number records of width characters out of the
+	 * given alphabet, each one ended by a newline
+	 */
+	private static byte[][] records(byte[] file, int number, int width,
+			String alphabet) {
+		Check.that(file.length == (long) number * (width + 1), file.length
+				+ " bytes instead of " + number + " records of " + width);
+		byte[][] records = new byte[number][];
+		for (int i = 0; i < number; i++) {
+			int offset = i * (width + 1);
+			records[i] = Arrays.copyOfRange(file, offset, offset + width);
+			Check.that(file[offset + width] == '\n', "record " + i + " ends");
+			for (byte b : records[i]) {
+				Check.that(alphabet.indexOf(b) >= 0, "record " + i + " holds "
+						+ (char) b);
+			}
+		}
+		return records;
+	}
+}
@@ -0,0 +1,145 @@
+package DNA;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * MinHash sketches over the k-mers of DNA strands, used to pick the few
+ * seeds worth an exact distance computation. A sketch keeps the minimum of
+ * size different hash functions over all k-mers of a strand, the share of
+ * equal minima estimates the Jaccard similarity of two k-mer sets.
+ * Sketches of one data set are stored back to back in one long[].
+ */
+public class KmerSketch {
+
+	private int kmer;
+	private int size;
+	private long[] salts;
+
+	/**
+	 * @param kmer
+	 *            k-mer length, at most 31
+	 * @param size
+	 *            number of hash functions
+	 */
+	public KmerSketch(int kmer, int size) {
+		this.kmer = Math.max(1, Math.min(31, kmer));
+		this.size = size;
+		this.salts = new long[size];
+		long x = 0x9E3779B97F4A7C15L;
+		for (int h = 0; h < size; h++) {
+			x = mix(x + h);
+			this.salts[h] = x;
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private static long mix(long x) {
+		x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+		x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return x ^ (x >>> 33);
+	}
+
+	private static int code(byte base) {
+		switch (base) {
+		case 'C':
+			return 1;
+		case 'G':
+			return 2;
+		case 'T':
+			return 3;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * write the sketch of a strand to dest starting at offset. The k-mers
+	 * are rolled two bits per base, strands shorter than one k-mer get an
+	 * empty sketch.
+	 * @param strand
+	 * @param from
+	 *            first base of the strand
+	 * @param length
+	 * @param dest
+	 * @param offset
+	 */
+	public void sketch(byte[] strand, int from, int length, long[] dest,
+			int offset) {
+		this.sketch(ByteBuffer.wrap(strand), from, length, dest, offset);
+	}
+
+	/**
+	 * sketch a strand held in a buffer, indices are absolute
+	 */
+	public void sketch(ByteBuffer strand, int from, int length, long[] dest,
+			int offset) {
+		Arrays.fill(dest, offset, offset + this.size, Long.MAX_VALUE);
+		long mask = (1L << (2 * this.kmer)) - 1;
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = ((value << 2) | code(strand.get(from + i))) & mask;
+			if (i + 1 < this.kmer) {
+				continue;
+			}
+			for (int h = 0; h < this.size; h++) {
+				long hash = mix(value ^ this.salts[h]);
+				if (hash < dest[offset + h]) {
+					dest[offset + h] = hash;
+				}
+			}
+		}
+	}
+
+	/**
+	 * number of hash functions for which both sketches agree
+	 */
+	public int similarity(long[] a, int aOffset, long[] b, int bOffset) {
+		int same = 0;
+		for (int h = 0; h < this.size; h++) {
+			if (a[aOffset + h] == b[bOffset + h]) {
+				same++;
+			}
+		}
+		return same;
+	}
+
+	/**
+	 * the count seeds most similar to a strand, ties go to the lower index
+	 * @param strands
+	 *            sketches of the strands
+	 * @param offset
+	 *            offset of the strand's sketch
+	 * @param seeds
+	 *            sketches of the k seeds
+	 * @param k
+	 * @param count
+	 * @param out
+	 *            receives the chosen seed indices in ascending order
+	 * @param score
+	 *            scratch space for count scores, reused across strands
+	 */
+	public void candidates(long[] strands, int offset, long[] seeds, int k,
+			int count, int[] out, int[] score) {
+		int filled = 0;
+		for (int j = 0; j < k; j++) {
+			int s = this.similarity(strands, offset, seeds, j * this.size);
+			if (filled == count && s <= score[count - 1]) {
+				continue;
+			}
+			// insert into the list kept sorted by descending score
+			int p = filled < count ? filled++ : count - 1;
+			while (p > 0 && score[p - 1] < s) {
+				score[p] = score[p - 1];
+				out[p] = out[p - 1];
+				p--;
+			}
+			score[p] = s;
+			out[p] = j;
+		}
+		Arrays.sort(out, 0, filled);
+	}
+}
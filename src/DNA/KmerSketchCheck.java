@@ -0,0 +1,100 @@
+package DNA;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks that sketches do not depend on where a strand is held and that the
+ * candidate seeds are the most similar ones with ties going to the lower
+ * index, against sorting all seeds by their similarity.
+ */
+public class KmerSketchCheck {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	public static void main(String[] args) {
+		Random rand = new Random(1);
+		// few hash functions so that equal similarities are common
+		KmerSketch sketch = new KmerSketch(4, 6);
+		int size = sketch.size();
+		int k = 40;
+		byte[][] seeds = new byte[k][];
+		long[] seedSketches = new long[k * size];
+		for (int j = 0; j < k; j++) {
+			seeds[j] = strand(rand, 20 + rand.nextInt(30));
+			sketch.sketch(seeds[j], 0, seeds[j].length, seedSketches, j
+					* size);
+			Check.that(sketch.similarity(seedSketches, j * size, seedSketches, j
+					* size) == size, "a seed is similar to itself");
+		}
+
+		int[] out = new int[k];
+		int[] score = new int[k];
+		long[] strandSketch = new long[size];
+		long[] bufferSketch = new long[size + 2];
+		for (int trial = 0; trial < 1000; trial++) {
+			byte[] strand = strand(rand, 20 + rand.nextInt(30));
+			sketch.sketch(strand, 0, strand.length, strandSketch, 0);
+
+			// the same strand inside a direct buffer
+			ByteBuffer bases = ByteBuffer.allocateDirect(strand.length + 5);
+			bases.position(5);
+			bases.put(strand);
+			sketch.sketch(bases, 5, strand.length, bufferSketch, 2);
+			Check.that(Arrays.equals(strandSketch, 0, size, bufferSketch, 2,
+					size + 2), "sketch of a direct buffer");
+
+			int count = 1 + rand.nextInt(k);
+			sketch.candidates(strandSketch, 0, seedSketches, k, count, out,
+					score);
+			int[] expected = expected(sketch, strandSketch, seedSketches, k,
+					count);
+			Check.that(Arrays.equals(out, 0, count, expected, 0, count),
+					count + " candidates "
+							+ Arrays.toString(Arrays.copyOf(out, count))
+							+ " instead of " + Arrays.toString(expected));
+		}
+		System.out.println("KmerSketchCheck: ok");
+	}
+
+	/**
+	 * seeds sorted by descending similarity then index, the first count of
+	 * them in ascending order
+	 */
+	private static int[] expected(KmerSketch sketch, long[] strand,
+			long[] seeds, int k, int count) {
+		Integer[] order = new Integer[k];
+		final int[] similarity = new int[k];
+		for (int j = 0; j < k; j++) {
+			order[j] = j;
+			similarity[j] = sketch.similarity(strand, 0, seeds, j
+					* sketch.size());
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (similarity[a] != similarity[b]) {
+					return similarity[b] - similarity[a];
+				}
+				return a - b;
+			}
+		});
+		int[] chosen = new int[count];
+		for (int c = 0; c < count; c++) {
+			chosen[c] = order[c];
+		}
+		Arrays.sort(chosen);
+		return chosen;
+	}
+
+	private static byte[] strand(Random rand, int length) {
+		byte[] strand = new byte[length];
+		for (int i = 0; i < length; i++) {
+			strand[i] = BASES[rand.nextInt(BASES.length)];
+		}
+		return strand;
+	}
+}
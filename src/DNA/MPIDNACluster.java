@@ -8,83 +8,317 @@ package DNA;
  * @author Nicolas_Yu
  *
  */
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Random;
 
-import mpi.*;
+import Cluster.JobServer;
+import Cluster.LabelWriter;
+import Cluster.StopCriteria;
+import Comm.CommException;
+import Comm.CommRequest;
+import Comm.Communicator;
+import Comm.MPJCommunicator;
+import Comm.ReduceOp;
+import Comm.SharedMemoryCommunicator;
+import Comm.Topology;
 
 public class MPIDNACluster {
 
+	private Communicator comm;
 	private int rank;
 	private int procs;
+	// ranks grouped by node, rank 0 exchanges data with the node leaders
+	private Topology topology;
+	// nodes of this many consecutive ranks instead of one node per host
+	private int ranksPerNode;
 
 	// each number represents the cluster it belongs to.
 	private int[] clusters;
 	private int[] capacity;
-	private int DNALength;
-	private int DNANumber;
+	// length of the longest strand in the data set
+	private int maxLength;
+	// at most this many strands are read, 0 reads the whole file
+	private int limit;
 
-	private char[][] DNAStrands;
-	private char[][] seeds;
+	// the master holds every strand, a worker the strands of its shard
+	private StrandBuffer strands;
+	// split the strands by estimated work instead of by count
+	private boolean balanced;
+	// input index of every strand on the master once the strands have been
+	// regrouped by shard, null while they are in input order
+	private int[] order;
+	// estimated work of every rank, known on the master
+	private double[] predictedLoad;
+	// nanoseconds spent in assign() in the current run, or iteration when
+	// the balance is reported after every iteration
+	private long assignTime;
+	private boolean reportEachIteration;
+	// seeds differ in length like the strands
+	private byte[][] seeds;
+	// draws the initial seeds, -seed fixes it to repeat a run
+	private Random random = new Random();
 	private int clusterNumber;
 	private String output = "MPIClusterOutput.csv";
+	// pipelined mode: shards travel in chunks which are assigned as they
+	// arrive
+	private boolean pipelined;
+	private int chunkSize;
+	// chunk transfers posted by init() and completed in the first iteration
+	private CommRequest[] pending;
+	// when to stop iterating, decided on the master
+	private StopCriteria criteria;
+	// file the trained seeds are saved to, null to keep them
+	private String model;
+	// Hamming metric on 2-bit packed strands instead of edit distance
+	private boolean hamming;
+	// words per packed strand, local strands and seeds stored back to back
+	private int words;
+	private LongBuffer packedStrands;
+	private LongBuffer packedSeeds;
+	// -offheap: the bases and packed strands live in direct buffers
+	private boolean offHeap;
+	// k-mer sketch pre-filter: only the candidates most similar seeds get an
+	// exact distance, 0 compares every seed
+	private int candidates;
+	private KmerSketch sketch;
+	private long[] strandSketches;
+	private long[] seedSketches;
+	// which seeds changed in the last recalculation, only those are sent
+	private boolean[] seedChanged;
+	// -cache: distance of every local strand to every seed, i * K + j, -1
+	// when unknown; only entries of changed seeds are recomputed
+	private boolean useCache;
+	private int[] distanceCache;
+	// row of the edit distance table, reused by every comparison
+	private int[] row;
 
-	public static void main(String args[]) throws MPIException {
-		if (args.length != 5) {
-			System.out
-			.println("Usage: MPIDNACluster <DataFileName> <ClusterNumber> <DNALength> <DNANumber> <Output>");
-			System.exit(-1);
+	// hash functions per k-mer sketch
+	private static final int SKETCH_SIZE = 32;
+
+	public static void main(String args[]) throws CommException {
+		// with -threads the ranks run in this JVM instead of under MPI
+		int threads = 0;
+		for (int i = 0; i + 1 < args.length; i++) {
+			if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i + 1]);
+			}
 		}
+		if (threads > 0) {
+			final String[] arguments = args;
+			SharedMemoryCommunicator.run(threads,
+					new SharedMemoryCommunicator.Task() {
+						public void run(Communicator comm) throws Exception {
+							MPIDNACluster.run(comm, arguments);
+						}
+					});
+		} else {
+			Communicator comm = MPJCommunicator.init(args);
+			run(comm, args);
+			comm.finish();
+		}
+	}
 
-		MPI.Init(args);
-		MPIDNACluster cluster = new MPIDNACluster(Integer.parseInt(args[1]),
-				Integer.parseInt(args[2]), Integer.parseInt(args[3]));
-		cluster.output = args[4];
+	/**
+	 * parse the arguments and run one rank
+	 */
+	private static void run(Communicator comm, String args[])
+			throws CommException {
+		// leading options, the positional arguments follow them
+		boolean sweep = false;
+		boolean pipelined = false;
+		boolean hamming = false;
+		int chunk = 1024;
+		int candidates = 0;
+		int kmer = 8;
+		boolean cache = false;
+		boolean balanced = true;
+		boolean balance = false;
+		boolean offHeap = false;
+		int ranksPerNode = 0;
+		int port = -1;
+		String model = null;
+		String predict = null;
+		Long randomSeed = null;
+		StopCriteria criteria = new StopCriteria();
+		int pos = 0;
+		while (pos < args.length && args[pos].startsWith("-")) {
+			int next = criteria.parse(args, pos);
+			if (next > pos) {
+				pos = next;
+				continue;
+			}
+			String option = args[pos++];
+			if (option.equals("-sweep")) {
+				sweep = true;
+			} else if (option.equals("-pipelined")) {
+				pipelined = true;
+			} else if (option.equals("-chunk") && pos < args.length) {
+				chunk = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-threads") && pos < args.length) {
+				pos++;
+			} else if (option.equals("-metric") && pos < args.length) {
+				String metric = args[pos++];
+				if (metric.equals("hamming")) {
+					hamming = true;
+				} else if (!metric.equals("edit")) {
+					usage();
+				}
+			} else if (option.equals("-candidates") && pos < args.length) {
+				candidates = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-kmer") && pos < args.length) {
+				kmer = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-cache")) {
+				cache = true;
+			} else if (option.equals("-offheap")) {
+				offHeap = true;
+			} else if (option.equals("-seed") && pos < args.length) {
+				randomSeed = Long.parseLong(args[pos++]);
+			} else if (option.equals("-balance")) {
+				balance = true;
+			} else if (option.equals("-ranksPerNode") && pos < args.length) {
+				ranksPerNode = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-serve") && pos < args.length) {
+				port = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-model") && pos < args.length) {
+				model = args[pos++];
+			} else if (option.equals("-predict") && pos < args.length) {
+				predict = args[pos++];
+			} else if (option.equals("-partition") && pos < args.length) {
+				String partition = args[pos++];
+				if (partition.equals("count")) {
+					balanced = false;
+				} else if (!partition.equals("cost")) {
+					usage();
+				}
+			} else {
+				usage();
+			}
+		}
+		String[] params = Arrays.copyOfRange(args, pos, args.length);
+		boolean serve = port >= 0;
+		int positional = sweep ? 4 : 3;
+		if (predict != null ? sweep || serve || params.length != 2
+				: serve ? sweep || params.length != 1
+						: params.length != positional
+								&& params.length != positional + 2) {
+			usage();
+		}
+
+		// a sweep runs a list of K values with several random restarts each
+		// over data which is read and distributed only once, the restarts of
+		// a K share every pass over it. A service runs the K of every job it
+		// receives
+		int[] ks = { 1 };
+		if (!serve && predict == null) {
+			String[] kList = params[1].split(",");
+			ks = new int[kList.length];
+			for (int i = 0; i < kList.length; i++) {
+				ks[i] = Integer.parseInt(kList[i].trim());
+			}
+		}
+		int n = params.length;
+		MPIDNACluster cluster = new MPIDNACluster(comm, ks[0]);
+		if (n > positional) {
+			// the old form also gives <DNALength> <DNANumber>: lengths are now
+			// taken from the data and the number only limits the reading
+			cluster.limit = Integer.parseInt(params[n - 2]);
+		}
+		if (!serve) {
+			cluster.output = params[n - 1];
+		}
+		cluster.model = model;
+		cluster.pipelined = pipelined;
+		cluster.chunkSize = chunk;
+		cluster.hamming = hamming;
+		cluster.candidates = candidates;
+		cluster.useCache = cache;
+		cluster.balanced = balanced;
+		cluster.reportEachIteration = balance;
+		cluster.offHeap = offHeap;
+		cluster.ranksPerNode = ranksPerNode;
+		cluster.criteria = criteria;
+		if (randomSeed != null) {
+			cluster.random = new Random(randomSeed);
+		}
+		if (candidates > 0) {
+			cluster.sketch = new KmerSketch(kmer, SKETCH_SIZE);
+		}
+		if (predict != null) {
+			long start = System.currentTimeMillis();
+			cluster.predict(predict, params[0]);
+			System.out.println("Rank " + cluster.rank + ": It uses "
+					+ (System.currentTimeMillis() - start)
+					+ " milliseconds to finish");
+			return;
+		}
 
 		if (cluster.rank == 0) {
-			cluster.readData(args[0]);
-			cluster.initSeed();
+			cluster.readData(params[0]);
+			if (!sweep && !serve) {
+				cluster.initSeed();
+			}
 		}
 		// start to calculate time data
 		long start = System.currentTimeMillis();
 		cluster.init();
-		cluster.iteration();
+		if (serve) {
+			cluster.serve(port);
+		} else if (sweep) {
+			cluster.sweep(ks, Integer.parseInt(params[2]));
+		} else {
+			cluster.iteration();
+		}
 		// time ends here.
 		System.out.println("Rank " + cluster.rank + ": It uses "
 				+ (System.currentTimeMillis() - start)
 				+ " milliseconds to finish");
-		MPI.Finalize();
-		cluster.printCluster();
+		if (!sweep && !serve) {
+			cluster.printCluster();
+			cluster.saveModel(model);
+		}
+	}
+
+	private static void usage() {
+		System.out
+		.println("Usage: MPIDNACluster [-threads <n>] [-pipelined] [-chunk <n>] [-metric <edit|hamming>] [-candidates <c>] [-kmer <k>] [-cache] [-partition <cost|count>] [-balance] [-offheap] [-ranksPerNode <n>] [-seed <n>] [-model <ModelFile>] "
+				+ StopCriteria.USAGE + " <DataFileName> <ClusterNumber> <Output>");
+		System.out
+		.println("       MPIDNACluster -sweep [-threads <n>] [-pipelined] [-chunk <n>] [-metric <edit|hamming>] [-candidates <c>] [-kmer <k>] [-cache] [-partition <cost|count>] [-balance] [-offheap] [-ranksPerNode <n>] [-seed <n>] [-model <ModelFile>] "
+				+ StopCriteria.USAGE + " <DataFileName> <K1,K2,...> <Restarts> <Output>");
+		System.out
+		.println("       MPIDNACluster " + JobServer.USAGE + " [-threads <n>] [-chunk <n>] [-metric <edit|hamming>] [-candidates <c>] [-kmer <k>] [-cache] [-partition <cost|count>] [-balance] [-offheap] [-ranksPerNode <n>] <DataFileName>");
+		System.out
+		.println("       MPIDNACluster -predict <ModelFile> [-threads <n>] [-chunk <n>] [-metric <edit|hamming>] [-candidates <c>] [-kmer <k>] [-offheap] <DataFileName> <Output>");
+		System.out
+		.println("The data file holds FASTA or FASTQ records or one strand per line.");
+		System.exit(-1);
 	}
 
 	/**
 	 * Constructor
+	 * @param comm
 	 * @param k
-	 * @param len
-	 * @param num
-	 * @throws MPIException
+	 * @throws CommException
 	 */
-	public MPIDNACluster(int k, int len, int num) throws MPIException {
-		this.rank = MPI.COMM_WORLD.Rank();
-		this.procs = MPI.COMM_WORLD.Size();
+	public MPIDNACluster(Communicator comm, int k) throws CommException {
+		this.comm = comm;
+		this.rank = comm.rank();
+		this.procs = comm.size();
 		this.clusterNumber = k;
-		this.DNALength = len;
-		this.DNANumber = num;
-
-		this.DNAStrands = new char[this.DNANumber][this.DNALength];
-		this.seeds = new char[this.clusterNumber][this.DNALength];
+		this.seeds = new byte[this.clusterNumber][];
 	}
 
 	/**
@@ -92,24 +326,22 @@ public class MPIDNACluster {
 	 * @param filename
 	 */
 	private void readData(String filename) {
-		ArrayList<String> dnaStrands = new ArrayList<String>();
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(filename));
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				dnaStrands.add(line);
-			}
-			br.close();
+			this.strands = SequenceReader.read(filename, this.limit,
+					this.offHeap);
 		} catch (FileNotFoundException e) {
 			System.out.println(filename + " does not exist!");
 			System.exit(-1);
 		} catch (IOException e) {
 			System.out.println("I/O Exception while reading the data");
 			System.exit(-1);
+		} catch (IllegalStateException e) { // too large for one buffer
+			System.out.println(filename + ": " + e.getMessage());
+			System.exit(-1);
 		}
-
-		for (int i = 0; i < this.DNAStrands.length; i++) {
-			this.DNAStrands[i] = dnaStrands.get(i).toCharArray();
+		if (this.strands.size() == 0) {
+			System.out.println(filename + " holds no DNA strands");
+			System.exit(-1);
 		}
 	}
 
@@ -117,28 +349,50 @@ public class MPIDNACluster {
 	 * initialize seeds randomly 
 	 */
 	private void initSeed() {
+		this.initSeed(this.random);
+	}
 
-		Random rand = new Random();
+	private void initSeed(Random rand) {
+		// draw by input index, so the seeds do not depend on how the strands
+		// were regrouped for the ranks
+		int[] position = this.inputOrder();
 		for (int i = 0; i < this.clusterNumber; i++) {
-			int index = rand.nextInt(this.DNAStrands.length);
-			for (int j = 0; j < this.DNALength; j++) {
-				seeds[i][j] = this.DNAStrands[index][j];
-			}
+			int index = rand.nextInt(position.length);
+			seeds[i] = this.strands.copy(position[index]);
 		}
 	}
 
 	/**
-	 * Send data to each process
+	 * Send data to each process. A shard travels as the offsets of its
+	 * strands followed by their bases, both straight out of the buffer.
+	 * Across nodes the shards go through the node leaders, one message per
+	 * node for each.
 	 */
-	public void init() throws MPIException {
-		this.clusters = new int[DNAStrands.length];
-		Arrays.fill(clusters, -1);
-
-		this.capacity = new int[this.procs];
-		for (int i = 1; i < this.procs; i++) {
-			this.capacity[i] = DNAStrands.length / (this.procs - 1)
-					+ (i <= DNAStrands.length % (this.procs - 1) ? 1 : 0);
+	public void init() throws CommException {
+		this.topology = Topology.create(this.comm, this.ranksPerNode);
+		// the workers learn the size of the data set and the strands and
+		// bases of every shard from the master
+		int[] header = new int[2 + 2 * this.procs];
+		if (rank == 0) {
+			this.partition();
+			header[0] = this.strands.size();
+			header[1] = this.strands.maxLength();
+			System.arraycopy(this.capacity, 0, header, 2, this.procs);
+			int[] first = this.shardOffsets();
+			for (int i = 1; i < this.procs; i++) {
+				header[2 + this.procs + i] = this.strands.offset(first[i]
+						+ this.capacity[i])
+						- this.strands.offset(first[i]);
+			}
 		}
+		this.topology.bcast(header, 0, header.length);
+		int number = header[0];
+		this.maxLength = header[1];
+		this.capacity = Arrays.copyOfRange(header, 2, 2 + this.procs);
+		int[] baseCounts = Arrays.copyOfRange(header, 2 + this.procs,
+				header.length);
+		this.clusters = new int[rank == 0 ? number : this.capacity[rank]];
+		Arrays.fill(clusters, -1);
 
 		try {
 			System.out.println("Host: " + InetAddress.getLocalHost().getHostName());
@@ -146,141 +400,1126 @@ public class MPIDNACluster {
 			e.printStackTrace();
 		}
 
-		if (rank == 0) {// master
+		if (this.pipelined) {
+			this.postChunks();
+		} else if (!this.topology.flat()) {
+			this.scatterStrands(baseCounts);
+		} else if (rank == 0) {// master
+			int[] offsets = this.strands.offsets();
 			int offset = 0;
 			for (int i = 1; i < this.procs; i++) {
-				for (int j = 0; j < capacity[i]; j++)
-					MPI.COMM_WORLD.Send(DNAStrands[offset + j], 0,
-							this.DNALength, MPI.CHAR, i, i);
+				int end = offset + this.capacity[i];
+				this.comm.send(offsets, offset, this.capacity[i] + 1, i, i);
+				this.sendBases(offset, end, i);
 
-				MPI.COMM_WORLD.Send(clusters, offset, this.capacity[i],
-						MPI.INT, i, i);
+				this.comm.send(clusters, offset, this.capacity[i], i, i);
 
-				offset += this.capacity[i];
+				offset = end;
 			}
 		} else {
-			for (int i = 0; i < capacity[this.rank]; i++)
-				MPI.COMM_WORLD.Recv(DNAStrands[i], 0, this.DNALength, MPI.CHAR,
-						0, rank);
+			this.receiveOffsets();
+			this.receiveBases();
 
-			MPI.COMM_WORLD.Recv(clusters, 0, this.capacity[rank], MPI.INT, 0,
+			this.comm.recv(clusters, 0, this.capacity[rank], 0,
 					rank);
 		}
+
+		if (this.hamming) {
+			this.words = PackedStrand.words(this.maxLength);
+			this.packedStrands = this.offHeap ? ByteBuffer
+					.allocateDirect(this.capacity[rank] * this.words * 8)
+					.order(ByteOrder.nativeOrder()).asLongBuffer() : LongBuffer
+					.wrap(new long[this.capacity[rank] * this.words]);
+			this.packedSeeds = LongBuffer.wrap(new long[this.clusterNumber
+					* this.words]);
+		}
+		if (this.sketch != null) {
+			this.strandSketches = new long[this.capacity[rank]
+					* this.sketch.size()];
+			this.seedSketches = new long[this.clusterNumber
+					* this.sketch.size()];
+		}
+		if (!this.pipelined) {
+			this.prepareStrands(0, this.capacity[rank]);
+		}
+		this.resetSeedState();
+	}
+
+	/**
+	 * choose the shard of every rank on the master. By count the shards
+	 * are contiguous runs of the input, by cost the strands are regrouped
+	 * so that every shard is still contiguous in the buffer.
+	 */
+	private void partition() {
+		int number = this.strands.size();
+		this.capacity = new int[this.procs];
+		if (this.balanced && this.procs > 2) {
+			int[] counts = new int[this.procs - 1];
+			this.order = StrandPartition.balance(this.strands, this.procs - 1,
+					this.hamming, counts);
+			this.strands = this.strands.permute(this.order);
+			System.arraycopy(counts, 0, this.capacity, 1, this.procs - 1);
+		} else {
+			for (int i = 1; i < this.procs; i++) {
+				this.capacity[i] = number / (this.procs - 1)
+						+ (i <= number % (this.procs - 1) ? 1 : 0);
+			}
+		}
+		this.predictedLoad = new double[this.procs];
+		int offset = 0;
+		for (int i = 1; i < this.procs; i++) {
+			for (int j = offset; j < offset + this.capacity[i]; j++) {
+				this.predictedLoad[i] += StrandPartition.cost(
+						this.strands.length(j), this.hamming);
+			}
+			offset += this.capacity[i];
+		}
+	}
+
+	/**
+	 * compare the assignment time of every rank since the last report with
+	 * the load predicted by the partition, printed by the master
+	 * @param when the iterations the times were taken over
+	 */
+	private void reportBalance(String when) throws CommException {
+		double[] local = new double[this.procs];
+		double[] times = new double[this.procs];
+		local[rank] = this.assignTime / 1e6;
+		this.topology.reduce(local, 0, times, 0, this.procs, ReduceOp.SUM);
+		if (rank == 0 && this.procs > 1) {
+			int slowest = 1;
+			for (int i = 2; i < this.procs; i++) {
+				if (times[i] > times[slowest]) {
+					slowest = i;
+				}
+			}
+			System.out.printf(
+					"Imbalance %s: predicted %.3f, measured %.3f (rank %d %.1f ms)%n",
+					when, StrandPartition.imbalance(this.predictedLoad, 1,
+							this.procs), StrandPartition.imbalance(times, 1,
+							this.procs), slowest, times[slowest]);
+		}
+	}
+
+	/**
+	 * receive the offsets of the local strands and set up the buffer their
+	 * bases will be received into
+	 */
+	private void receiveOffsets() throws CommException {
+		int[] offsets = new int[this.capacity[rank] + 1];
+		this.comm.recv(offsets, 0, offsets.length, 0, rank);
+		this.wrapOffsets(offsets);
+	}
+
+	/**
+	 * rebase the received offsets of the local strands to start at 0 and
+	 * allocate the bases they index
+	 */
+	private void wrapOffsets(int[] offsets) {
+		int count = this.capacity[rank];
+		for (int i = count; i >= 0; i--) {
+			offsets[i] -= offsets[0];
+		}
+		this.strands = new StrandBuffer(StrandBuffer.allocate(offsets[count],
+				this.offHeap), offsets, count);
+	}
+
+	/**
+	 * first strand of every shard
+	 */
+	private int[] shardOffsets() {
+		int[] first = new int[this.procs];
+		for (int i = 2; i < this.procs; i++) {
+			first[i] = first[i - 1] + this.capacity[i - 1];
+		}
+		return first;
+	}
+
+	/**
+	 * hand out the shards through the node leaders, the offsets of every
+	 * shard first and then its bases
+	 * @param baseCounts
+	 *            number of bases of every shard
+	 */
+	private void scatterStrands(int[] baseCounts) throws CommException {
+		int[] first = this.shardOffsets();
+		int[] counts = new int[this.procs];
+		for (int i = 1; i < this.procs; i++) {
+			counts[i] = this.capacity[i] + 1;
+		}
+		int[] offsets = rank == 0 ? this.strands.offsets()
+				: new int[counts[rank]];
+		this.topology.scatter(offsets, first, counts, offsets, 0);
+		int[] from = new int[this.procs];
+		if (rank == 0) {
+			for (int i = 1; i < this.procs; i++) {
+				from[i] = offsets[first[i]];
+			}
+		} else {
+			this.wrapOffsets(offsets);
+		}
+		this.topology.scatter(this.strands.message(), from, baseCounts,
+				this.strands.message(), 0);
+	}
+
+	/**
+	 * send the bases of strands [from, to) to a worker. Off the heap they go
+	 * in pieces of chunkSize strands, so that a communicator which stages
+	 * direct buffers through the heap only needs one piece at a time.
+	 */
+	private void sendBases(int from, int to, int dest) throws CommException {
+		int[] offsets = this.strands.offsets();
+		int step = this.offHeap ? this.chunkSize : to - from;
+		for (int c = from; c < to; c += step) {
+			int end = Math.min(c + step, to);
+			this.comm.send(this.strands.message(), offsets[c], offsets[end]
+					- offsets[c], dest, dest);
+		}
+	}
+
+	/**
+	 * receive the bases of the local strands in the pieces of sendBases()
+	 */
+	private void receiveBases() throws CommException {
+		int[] offsets = this.strands.offsets();
+		int count = this.capacity[rank];
+		int step = this.offHeap ? this.chunkSize : count;
+		for (int c = 0; c < count; c += step) {
+			int end = Math.min(c + step, count);
+			this.comm.recv(this.strands.message(), offsets[c], offsets[end]
+					- offsets[c], 0, rank);
+		}
+	}
+
+	/**
+	 * mark every seed as changed and forget cached distances, for a new run
+	 */
+	private void resetSeedState() {
+		this.seedChanged = new boolean[this.clusterNumber];
+		Arrays.fill(this.seedChanged, true);
+		if (this.useCache) {
+			if (this.distanceCache == null
+					|| this.distanceCache.length != this.capacity[rank]
+							* this.clusterNumber) {
+				this.distanceCache = new int[this.capacity[rank]
+						* this.clusterNumber];
+			}
+			Arrays.fill(this.distanceCache, -1);
+		}
+	}
+
+	/**
+	 * the seeds, labels and stopping state of one model with what the ranks
+	 * derive from its seeds. Several of them iterate together in a sweep;
+	 * the one being worked on is swapped into the fields the single model
+	 * code uses.
+	 */
+	private static class Run {
+		private byte[][] seeds;
+		private int[] clusters;
+		private StopCriteria criteria;
+		private boolean[] seedChanged;
+		private LongBuffer packedSeeds;
+		private long[] seedSketches;
+		private int[] distanceCache;
+	}
+
+	/**
+	 * the current model as a run of its own
+	 */
+	private Run current() {
+		Run run = new Run();
+		run.criteria = this.criteria;
+		this.leave(run);
+		return run;
+	}
+
+	private void enter(Run run) {
+		this.seeds = run.seeds;
+		this.clusters = run.clusters;
+		this.criteria = run.criteria;
+		this.seedChanged = run.seedChanged;
+		this.packedSeeds = run.packedSeeds;
+		this.seedSketches = run.seedSketches;
+		this.distanceCache = run.distanceCache;
+	}
+
+	private void leave(Run run) {
+		run.seeds = this.seeds;
+		run.clusters = this.clusters;
+		run.seedChanged = this.seedChanged;
+		run.packedSeeds = this.packedSeeds;
+		run.seedSketches = this.seedSketches;
+		run.distanceCache = this.distanceCache;
 	}
 
 	/**
 	 * iterations for K-means until converge
-	 * @throws MPIException
+	 * @throws CommException
+	 */
+	public void iteration() throws CommException {
+		this.iteration(new Run[] { this.current() });
+	}
+
+	/**
+	 * iterate several models of clusterNumber seeds at once until each of
+	 * them stops. Every block of local strands is assigned to all runs still
+	 * going before the next block is read, so they share one pass over the
+	 * strands per iteration. The master gathers the labels and recalculates
+	 * the seeds of every run as for a single model. The last run is left in
+	 * the fields.
 	 */
-	public void iteration() throws MPIException {
-		boolean[] changed = new boolean[1];
-		changed[0] = true;
+	private void iteration(Run[] runs) throws CommException {
+		boolean[] changed = new boolean[runs.length];
+		Arrays.fill(changed, true);
 		int count = 0;
-		while (changed[0]) {
+		for (Run run : runs) {
+			run.criteria.start();
+		}
+		// the objective is reduced in every iteration only when the master
+		// stops on its improvement, otherwise once at the end
+		boolean[] measure = { rank == 0 && runs[0].criteria.usesObjective() };
+		this.topology.bcast(measure, 0, 1);
+		this.assignTime = 0;
+		long[] localCost = new long[runs.length];
+		long[] objective = new long[runs.length];
+		while (running(changed)) {
 			System.out.println("Iteration #" + count + " rank #" + this.rank);
 			count++;
-			for (int i = 0; i < this.clusterNumber; i++) {
-				MPI.COMM_WORLD.Bcast(seeds[i], 0, this.DNALength, MPI.CHAR, 0); // TODO
+			for (int r = 0; r < runs.length; r++) {
+				if (changed[r]) {
+					this.enter(runs[r]);
+					this.topology.bcast(this.seedChanged, 0, this.clusterNumber);
+					this.broadcastSeeds();
+					this.prepareSeeds();
+					this.leave(runs[r]);
+				}
 			}
 
 			// reassign the class
-			for (int i = 0; i < this.capacity[rank]; i++) {
-				int dis = Integer.MAX_VALUE;
-				for (int j = 0; j < seeds.length; j++) {
-
-					int mydis = distance(DNAStrands[i], seeds[j]);
-					if (mydis < dis) {
-						dis = mydis;
-						this.clusters[i] = j;
+			if (this.pending != null) {
+				this.assignPipelined(runs, changed, localCost);
+			} else {
+				this.assign(runs, changed, localCost);
+			}
+			if (this.reportEachIteration) {
+				this.reportBalance("in iteration #" + (count - 1));
+				this.assignTime = 0;
+			}
+			if (measure[0]) {
+				this.topology.reduce(localCost, 0, objective, 0, runs.length,
+						ReduceOp.SUM);
+			}
+			for (int r = 0; r < runs.length; r++) {
+				if (!changed[r]) {
+					continue;
+				}
+				this.enter(runs[r]);
+				// calculate distance
+				if (this.rank != 0) { // wait for all the participants to send
+					this.topology.gather(clusters, 0, null, null,
+							this.capacity, null);
+				} else {
+					int[] newCluster = new int[this.clusters.length];
+					int reassigned = this.receiveLabels(newCluster);
+					this.clusters = newCluster;
+					changed[r] = !this.criteria.assigned(reassigned,
+							newCluster.length, measure[0] ? objective[r]
+									: Double.NaN);
+					if (changed[r]) {
+						byte[][] previous = seeds.clone();
+						this.recalculateSeed();
+						if (this.criteria.usesShift()) {
+							changed[r] = !this.criteria.moved(this
+									.shift(previous));
+						}
 					}
 				}
+				this.leave(runs[r]);
 			}
-			// calculate distance
-			if (this.rank != 0) { // wait for all the participants to send
+			this.topology.bcast(changed, 0, changed.length);
 
-				MPI.COMM_WORLD.Send(clusters, 0, this.capacity[rank], MPI.INT,
-						0, 0);
+		}
+		if (!measure[0]) {
+			// the cost of every run stays from its last pass
+			this.topology.reduce(localCost, 0, objective, 0, runs.length,
+					ReduceOp.SUM);
+			for (int r = 0; r < runs.length; r++) {
+				runs[r].criteria.finish(objective[r]);
+			}
+		}
+		if (!this.reportEachIteration) {
+			this.reportBalance("over " + count + " iterations");
+		}
+		if (rank == 0) {
+			for (Run run : runs) {
+				run.criteria.report();
+			}
+		}
+	}
+
+	private static boolean running(boolean[] changed) {
+		for (boolean c : changed) {
+			if (c) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * assign the local strands to the seeds of every run still going, in
+	 * blocks of chunkSize strands when there are several runs
+	 */
+	private void assign(Run[] runs, boolean[] changed, long[] localCost) {
+		int count = this.capacity[rank];
+		int block = runs.length > 1 ? this.chunkSize : Math.max(count, 1);
+		for (int r = 0; r < runs.length; r++) {
+			if (changed[r]) {
+				localCost[r] = 0;
+			}
+		}
+		for (int from = 0; from < count; from += block) {
+			int to = Math.min(from + block, count);
+			for (int r = 0; r < runs.length; r++) {
+				if (changed[r]) {
+					this.enter(runs[r]);
+					localCost[r] += this.assign(from, to);
+					this.leave(runs[r]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * largest distance under the chosen metric between a seed and the seed
+	 * it was recalculated into
+	 */
+	private int shift(byte[][] previous) {
+		int max = 0;
+		for (int i = 0; i < this.clusterNumber; i++) {
+			if (!this.seedChanged[i]) {
+				continue;
+			}
+			byte[] seed = seeds[i];
+			int dis;
+			if (this.hamming) {
+				int length = Math.min(previous[i].length, seed.length);
+				dis = Math.abs(previous[i].length - seed.length);
+				for (int j = 0; j < length; j++) {
+					if (PackedStrand.code(previous[i][j]) != PackedStrand
+							.code(seed[j])) {
+						dis++;
+					}
+				}
 			} else {
-				int[] newCluster = new int[this.clusters.length];
-				int offset = 0;
+				dis = distance(ByteBuffer.wrap(previous[i]), 0,
+						previous[i].length, seed);
+			}
+			max = Math.max(max, dis);
+		}
+		return max;
+	}
+
+	/**
+	 * broadcast the seeds which changed, the ranks keep the others. Their
+	 * lengths go first, then their bases back to back in one message.
+	 */
+	private void broadcastSeeds() throws CommException {
+		int[] lengths = new int[this.clusterNumber];
+		int total = 0;
+		for (int i = 0; i < this.clusterNumber; i++) {
+			if (rank == 0 && this.seedChanged[i]) {
+				lengths[i] = seeds[i].length;
+				total += lengths[i];
+			}
+		}
+		this.topology.bcast(lengths, 0, this.clusterNumber);
+		if (rank != 0) {
+			for (int i = 0; i < this.clusterNumber; i++) {
+				total += lengths[i];
+			}
+		}
+		byte[] bases = new byte[total];
+		int offset = 0;
+		for (int i = 0; i < this.clusterNumber && rank == 0; i++) {
+			if (this.seedChanged[i]) {
+				System.arraycopy(seeds[i], 0, bases, offset, lengths[i]);
+				offset += lengths[i];
+			}
+		}
+		this.topology.bcast(bases, 0, total);
+		for (int i = 0; i < this.clusterNumber && rank != 0; i++) {
+			if (this.seedChanged[i]) {
+				seeds[i] = Arrays.copyOfRange(bases, offset, offset
+						+ lengths[i]);
+				offset += lengths[i];
+			}
+		}
+	}
+
+	/**
+	 * assign the local strands [from, to) to their nearest seed
+	 * @return the total distance to the chosen seeds
+	 */
+	private long assign(int from, int to) {
+		long start = System.nanoTime();
+		long cost = 0;
+		boolean filter = this.sketch != null
+				&& this.candidates < this.clusterNumber;
+		int[] chosen = new int[filter ? this.candidates : 0];
+		int[] score = new int[chosen.length];
+		for (int i = from; i < to; i++) {
+			int dis = Integer.MAX_VALUE;
+			if (filter) {
+				this.sketch.candidates(this.strandSketches, i
+						* this.sketch.size(), this.seedSketches,
+						this.clusterNumber, this.candidates, chosen, score);
+			}
+			int n = filter ? chosen.length : seeds.length;
+			for (int c = 0; c < n; c++) {
+				int j = filter ? chosen[c] : c;
+
+				int mydis = this.distance(i, j);
+				if (mydis < dis) {
+					dis = mydis;
+					this.clusters[i] = j;
+				}
+			}
+			cost += dis;
+		}
+		this.assignTime += System.nanoTime() - start;
+		return cost;
+	}
+
+	/**
+	 * distance between local strand i and seed j under the chosen metric
+	 */
+	private int distance(int i, int j) {
+		if (this.distanceCache != null) {
+			int index = i * this.clusterNumber + j;
+			if (this.seedChanged[j] || this.distanceCache[index] < 0) {
+				this.distanceCache[index] = this.computeDistance(i, j);
+			}
+			return this.distanceCache[index];
+		}
+		return this.computeDistance(i, j);
+	}
+
+	private int computeDistance(int i, int j) {
+		if (this.hamming) {
+			return PackedStrand.hamming(this.packedStrands, i * this.words,
+					this.strands.length(i), this.packedSeeds, j * this.words,
+					seeds[j].length);
+		}
+		return distance(this.strands.bases(), this.strands.offset(i),
+				this.strands.length(i), seeds[j]);
+	}
+
+	/**
+	 * pack and sketch the local strands [from, to) once they have arrived
+	 */
+	private void prepareStrands(int from, int to) {
+		ByteBuffer bases = this.strands.bases();
+		for (int i = from; i < to; i++) {
+			int offset = this.strands.offset(i);
+			int length = this.strands.length(i);
+			if (this.hamming) {
+				PackedStrand.pack(bases, offset, length, this.packedStrands, i
+						* this.words);
+			}
+			if (this.sketch != null) {
+				this.sketch.sketch(bases, offset, length, this.strandSketches, i
+						* this.sketch.size());
+			}
+		}
+	}
+
+	/**
+	 * pack and sketch the seeds which changed after they have been broadcast
+	 */
+	private void prepareSeeds() {
+		for (int i = 0; i < this.clusterNumber; i++) {
+			if (!this.seedChanged[i]) {
+				continue;
+			}
+			if (this.hamming) {
+				PackedStrand.pack(ByteBuffer.wrap(seeds[i]), 0,
+						seeds[i].length, this.packedSeeds, i * this.words);
+			}
+			if (this.sketch != null) {
+				this.sketch.sketch(seeds[i], 0, seeds[i].length,
+						this.seedSketches, i * this.sketch.size());
+			}
+		}
+	}
+
+	/**
+	 * post non-blocking transfers of every shard in chunks of chunkSize
+	 * strands. The offsets of each shard go first so that a worker can post
+	 * the receive of every chunk of bases right into place. The master
+	 * posts the chunks round robin over the ranks so that every worker can
+	 * start early.
+	 */
+	private void postChunks() throws CommException {
+		ArrayList<CommRequest> requests = new ArrayList<CommRequest>();
+		if (rank == 0) {
+			int[] offsets = this.strands.offsets();
+			int[] first = this.shardOffsets();
+			for (int i = 1; i < this.procs; i++) {
+				requests.add(this.comm.isend(offsets, first[i],
+						this.capacity[i] + 1, i, i));
+			}
+			for (int c = 0; c < this.strands.size(); c += this.chunkSize) {
 				for (int i = 1; i < this.procs; i++) {
-					MPI.COMM_WORLD.Recv(newCluster, offset, this.capacity[i],
-							MPI.INT, i, 0);
-					offset += this.capacity[i];
+					int len = Math.min(this.chunkSize, this.capacity[i] - c);
+					if (len <= 0) {
+						continue;
+					}
+					int from = offsets[first[i] + c];
+					requests.add(this.comm.isend(this.strands.message(), from,
+							offsets[first[i] + c + len] - from, i, i));
 				}
-				// check whether the cluster is fixed
-				int i = 0;
-				for (i = 0; i < newCluster.length; i++) {
-					if (this.clusters[i] == newCluster[i]) {
-						changed[0] = false;
-					} else {
-						this.clusters = newCluster;
-						this.recalculateSeed();
-						changed[0] = true;
+			}
+		} else {
+			this.receiveOffsets();
+			int[] offsets = this.strands.offsets();
+			for (int c = 0; c < this.capacity[rank]; c += this.chunkSize) {
+				int len = Math.min(this.chunkSize, this.capacity[rank] - c);
+				requests.add(this.comm.irecv(this.strands.message(), offsets[c],
+						offsets[c + len] - offsets[c], 0, rank));
+			}
+		}
+		this.pending = requests.toArray(new CommRequest[requests.size()]);
+	}
+
+	/**
+	 * first assignment pass in pipelined mode, each chunk is assigned to
+	 * every run as soon as it has arrived
+	 */
+	private void assignPipelined(Run[] runs, boolean[] changed,
+			long[] localCost) throws CommException {
+		Arrays.fill(localCost, 0);
+		for (int n = 0; n < this.pending.length; n++) {
+			int chunk = this.comm.waitAny(this.pending);
+			if (this.rank == 0) { // only the sends have to finish
+				continue;
+			}
+			int from = chunk * this.chunkSize;
+			int to = Math.min(from + this.chunkSize, this.capacity[rank]);
+			this.prepareStrands(from, to);
+			for (int r = 0; r < runs.length; r++) {
+				this.enter(runs[r]);
+				localCost[r] += this.assign(from, to);
+				this.leave(runs[r]);
+			}
+		}
+		this.pending = null;
+	}
+
+	/**
+	 * receive the labels of every rank in the order they arrive and compare
+	 * each part with the previous labels as soon as it is in
+	 * @return the number of labels which changed
+	 */
+	private int receiveLabels(final int[] newCluster) throws CommException {
+		final int[] offsets = this.shardOffsets();
+		final int[] changed = new int[1];
+		this.topology.gather(this.clusters, 0, newCluster, offsets,
+				this.capacity, new Topology.Arrival() {
+					public void arrived(int i) {
+						for (int j = offsets[i]; j < offsets[i]
+								+ capacity[i]; j++) {
+							if (clusters[j] != newCluster[j]) {
+								changed[0]++;
+							}
+						}
+					}
+				});
+		return changed[0];
+	}
+
+	/**
+	 * prepare a new run with k clusters over the data already distributed
+	 */
+	private void reset(int k) {
+		this.clusterNumber = k;
+		this.seeds = new byte[k][];
+		if (this.hamming) {
+			this.packedSeeds = LongBuffer.wrap(new long[k * this.words]);
+		}
+		if (this.sketch != null) {
+			this.seedSketches = new long[k * this.sketch.size()];
+		}
+		Arrays.fill(this.clusters, -1);
+		this.resetSeedState();
+		if (this.rank == 0) {
+			this.initSeed();
+		}
+	}
+
+	/**
+	 * run each K for the given number of restarts and keep the model with
+	 * the lowest total distance for every K. The restarts of a K iterate
+	 * together and share the passes over the strands.
+	 */
+	public void sweep(int[] ks, int restarts) throws CommException {
+		StopCriteria criteria = this.criteria;
+		for (int k : ks) {
+			Run[] runs = new Run[restarts];
+			for (int r = 0; r < restarts; r++) {
+				// every restart gets its own cache
+				this.distanceCache = null;
+				this.reset(k);
+				this.criteria = criteria.copy();
+				runs[r] = this.current();
+				runs[r].clusters = this.clusters.clone();
+			}
+			this.iteration(runs);
+			this.criteria = criteria;
+			if (this.rank == 0) {
+				int best = 0;
+				for (int r = 0; r < restarts; r++) {
+					long total = (long) runs[r].criteria.objective();
+					System.out.println("K = " + k + " restart " + r
+							+ ": total distance " + total);
+					if (total < (long) runs[best].criteria.objective()) {
+						best = r;
+					}
+				}
+				System.out.println("K = " + k + ": best total distance "
+						+ (long) runs[best].criteria.objective()
+						+ " from restart " + best);
+				this.clusters = runs[best].clusters;
+				this.seeds = runs[best].seeds;
+				this.printCluster(this.output + "." + k);
+				if (this.model != null) {
+					this.saveModel(this.model + "." + k);
+				}
+			}
+		}
+	}
+
+	/**
+	 * keep the distributed data and run the jobs received by a JobServer on
+	 * rank 0 until one asks for shutdown. Every job starts like a restart of
+	 * a sweep, with the seeds and stopping criteria the job gives.
+	 */
+	public void serve(int port) throws CommException {
+		JobServer server = null;
+		if (this.rank == 0) {
+			try {
+				server = new JobServer(port);
+			} catch (IOException e) {
+				System.out.println("Cannot listen on port " + port);
+				System.exit(-1);
+			}
+			System.out.println("Serving clustering jobs on port "
+					+ server.port());
+		}
+		int[] k = new int[1];
+		JobServer.Job job = null;
+		byte[][] initial = null;
+		while (true) {
+			if (this.rank == 0) {
+				while (true) {
+					try {
+						job = server.next();
+					} catch (IOException e) {
+						System.out.println("I/O Exception while waiting for jobs");
+						System.exit(-1);
+					}
+					try {
+						initial = this.initialSeeds(job);
 						break;
+					} catch (IllegalArgumentException e) {
+						server.error(e.getMessage());
 					}
 				}
+				k[0] = job.k();
+			}
+			this.topology.bcast(k, 0, 1);
+			if (k[0] == 0) {
+				break;
+			}
+			this.reset(k[0]);
+			if (this.rank == 0) {
+				this.criteria = job.criteria();
+				if (initial != null) {
+					this.seeds = initial;
+				} else if (job.randomSeed() != null) {
+					this.initSeed(new Random(job.randomSeed()));
+				}
+			}
+			this.iteration();
+			if (this.rank == 0) {
+				this.answer(server);
+			}
+		}
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * the seeds a job gives, one strand per line
+	 * @return null when the seeds are to be chosen at random
+	 * @throws IllegalArgumentException
+	 *             when the job cannot run on this data
+	 */
+	private byte[][] initialSeeds(JobServer.Job job) {
+		if (job.k() > this.strands.size()) {
+			throw new IllegalArgumentException("K exceeds the "
+					+ this.strands.size() + " strands");
+		}
+		if (job.seeds() == null) {
+			return null;
+		}
+		byte[][] seeds = new byte[job.k()][];
+		for (int i = 0; i < job.k(); i++) {
+			seeds[i] = job.seeds()[i].toUpperCase().getBytes();
+			if (seeds[i].length == 0 || seeds[i].length > this.maxLength) {
+				throw new IllegalArgumentException("seed " + i
+						+ " has to hold 1 to " + this.maxLength + " bases");
+			}
+		}
+		return seeds;
+	}
+
+	/**
+	 * send the seeds and the labels in input order of the finished job to
+	 * the client
+	 */
+	private void answer(JobServer server) {
+		try {
+			Writer out = server.output();
+			out.write("ok " + this.clusterNumber + " " + this.strands.size()
+					+ " " + this.criteria.iterations() + " "
+					+ this.criteria.objective() + "\n");
+			for (byte[] seed : this.seeds) {
+				out.write(new String(seed) + "\n");
+			}
+			for (int p : this.inputOrder()) {
+				out.write(Integer.toString(this.clusters[p]));
+				out.write('\n');
+			}
+			server.done();
+		} catch (IOException e) {
+			System.out.println("Lost the client: " + e.getMessage());
+			server.drop();
+		}
+	}
+
+	/**
+	 * position of every strand in the buffer, by input index. The strands
+	 * may have been regrouped by shard.
+	 */
+	private int[] inputOrder() {
+		int[] position = new int[this.strands.size()];
+		for (int i = 0; i < position.length; i++) {
+			position[this.order != null ? this.order[i] : i] = i;
+		}
+		return position;
+	}
+
+	/**
+	 * write the seeds to a model file on rank 0, one strand per line, which
+	 * SequenceReader reads back
+	 */
+	private void saveModel(String filename) {
+		if (this.rank != 0 || filename == null) {
+			return;
+		}
+		try {
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(filename))));
+			for (byte[] seed : this.seeds) {
+				bw.write(new String(seed) + "\n");
+			}
+			bw.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("I/O Exception!");
+		}
+	}
+
+	/**
+	 * a batch of strands on its way to a worker and back
+	 */
+	private static class Batch {
+		private StrandBuffer strands;
+		// strands and bases of the batch
+		private int[] header = new int[2];
+		private int[] labels;
+		private ArrayList<CommRequest> requests = new ArrayList<CommRequest>();
 
+		void waitFor() throws CommException {
+			for (CommRequest r : this.requests) {
+				r.waitFor();
 			}
-			if (rank == 0) {
-				for (int i = 1; i < procs; i++) {
-					MPI.COMM_WORLD.Send(changed, 0, 1, MPI.BOOLEAN, i, i);
+			this.requests.clear();
+		}
+	}
+
+	/**
+	 * label the strands of input with their nearest seed of a model and
+	 * write one label per line to the output. Rank 0 reads the strands in
+	 * batches of chunkSize and hands them round robin to the workers, two
+	 * batches per worker in flight, and writes the labels in input order.
+	 * A single rank labels the batches itself.
+	 */
+	public void predict(String modelFile, String input) throws CommException {
+		this.topology = Topology.create(this.comm, this.ranksPerNode);
+		int[] k = new int[1];
+		if (this.rank == 0) {
+			try {
+				StrandBuffer model = SequenceReader.read(modelFile, 0);
+				this.seeds = new byte[model.size()][];
+				for (int i = 0; i < model.size(); i++) {
+					this.seeds[i] = model.copy(i);
 				}
-			} else {
-				MPI.COMM_WORLD.Recv(changed, 0, 1, MPI.BOOLEAN, 0, rank);
+			} catch (FileNotFoundException e) {
+				System.out.println(modelFile + " does not exist!");
+				System.exit(-1);
+			} catch (IOException e) {
+				System.out.println("I/O Exception while reading the model");
+				System.exit(-1);
 			}
+			if (this.seeds.length == 0) {
+				System.out.println(modelFile + " holds no seeds");
+				System.exit(-1);
+			}
+			k[0] = this.seeds.length;
+		}
+		this.topology.bcast(k, 0, 1);
+		this.clusterNumber = k[0];
+		if (this.rank != 0) {
+			this.seeds = new byte[this.clusterNumber][];
+		}
+		this.seedChanged = new boolean[this.clusterNumber];
+		Arrays.fill(this.seedChanged, true);
+		this.broadcastSeeds();
+		this.clusters = new int[this.chunkSize];
+		this.capacity = new int[this.procs];
+		this.capacity[rank] = this.chunkSize;
+		if (this.rank != 0) {
+			this.labelBatches();
+			return;
+		}
 
+		int workers = this.procs - 1;
+		// batch b goes to worker 1 + b % workers in slot b % slots
+		Batch[] batches = new Batch[Math.max(1, 2 * workers)];
+		long sent = 0;
+		long written = 0;
+		long strands = 0;
+		try {
+			SequenceReader reader = SequenceReader.open(input);
+			LabelWriter out = new LabelWriter(this.output);
+			while (true) {
+				int slot = (int) (sent % batches.length);
+				for (; written <= sent - batches.length; written++) {
+					this.writeBatch(batches[(int) (written % batches.length)],
+							out);
+				}
+				if (batches[slot] == null) {
+					batches[slot] = new Batch();
+					batches[slot].labels = new int[this.chunkSize];
+					batches[slot].strands = new StrandBuffer(this.offHeap);
+				}
+				// the slot's previous batch is written, its buffer is free
+				Batch batch = batches[slot];
+				reader.next(batch.strands, this.chunkSize);
+				int count = batch.strands.size();
+				if (count == 0) {
+					break;
+				}
+				strands += count;
+				batch.header[0] = count;
+				batch.header[1] = batch.strands.offset(count);
+				if (workers == 0) {
+					this.labelBatch(batch.strands);
+					System.arraycopy(this.clusters, 0, batch.labels, 0, count);
+				} else {
+					int worker = 1 + (int) (sent % workers);
+					batch.requests.add(this.comm.isend(batch.header, 0, 2,
+							worker, worker));
+					batch.requests.add(this.comm.isend(
+							batch.strands.offsets(), 0, count + 1, worker,
+							worker));
+					batch.requests.add(this.comm.isend(
+							batch.strands.message(), 0, batch.header[1],
+							worker, worker));
+					batch.requests.add(this.comm.irecv(batch.labels, 0, count,
+							worker, 0));
+				}
+				sent++;
+			}
+			for (; written < sent; written++) {
+				this.writeBatch(batches[(int) (written % batches.length)], out);
+			}
+			reader.close();
+			out.close();
+		} catch (FileNotFoundException e) {
+			System.out.println(input + " does not exist!");
+			System.exit(-1);
+		} catch (IOException e) {
+			System.out.println("I/O Exception while labelling the data");
+			System.exit(-1);
+		}
+		int[] end = new int[2];
+		for (int i = 1; i < this.procs; i++) {
+			this.comm.send(end, 0, 2, i, i);
 		}
+		System.out.println("Labelled " + strands + " strands");
+	}
+
+	private void writeBatch(Batch batch, LabelWriter out) throws IOException,
+			CommException {
+		batch.waitFor();
+		out.write(batch.labels, 0, batch.header[0]);
 	}
 
 	/**
-	 * update seeds after one iteration
+	 * worker side of predict(): label the batches from rank 0 until an
+	 * empty one arrives. The offsets and bases are received into the same
+	 * memory every time, the bases grow when a batch needs more.
 	 */
-	private void recalculateSeed() {
+	private void labelBatches() throws CommException {
+		int[] header = new int[2];
+		int[] offsets = new int[this.chunkSize + 1];
+		ByteBuffer bases = StrandBuffer.allocate(0, this.offHeap);
+		while (true) {
+			this.comm.recv(header, 0, 2, 0, rank);
+			if (header[0] == 0) {
+				return;
+			}
+			this.comm.recv(offsets, 0, header[0] + 1, 0, rank);
+			if (bases.capacity() < header[1]) {
+				bases = StrandBuffer.allocate(Math.max(header[1],
+						2 * bases.capacity()), this.offHeap);
+			}
+			StrandBuffer batch = new StrandBuffer(bases, offsets, header[0]);
+			this.comm.recv(batch.message(), 0, header[1], 0, rank);
+			this.labelBatch(batch);
+			this.comm.send(this.clusters, 0, header[0], 0, 0);
+		}
+	}
 
-		ArrayList<ArrayList<String>> clusterStrings = new ArrayList<ArrayList<String>>();
-		for (int i = 0; i < this.clusterNumber; i++) {
-			clusterStrings.add(new ArrayList<String>());
+	/**
+	 * assign a batch of strands to the seeds, the labels go to clusters.
+	 * Packed strands are as wide as the longest strand or seed seen so far,
+	 * the seeds are packed again when a longer strand arrives.
+	 */
+	private void labelBatch(StrandBuffer batch) {
+		this.strands = batch;
+		boolean repack = false;
+		if (this.hamming) {
+			int words = PackedStrand.words(batch.maxLength());
+			for (byte[] seed : this.seeds) {
+				words = Math.max(words, PackedStrand.words(seed.length));
+			}
+			if (words > this.words || this.packedStrands == null) {
+				this.words = words;
+				this.packedStrands = this.offHeap ? ByteBuffer
+						.allocateDirect(this.chunkSize * words * 8)
+						.order(ByteOrder.nativeOrder()).asLongBuffer()
+						: LongBuffer.wrap(new long[this.chunkSize * words]);
+				this.packedSeeds = LongBuffer.wrap(new long[this.clusterNumber
+						* words]);
+				repack = true;
+			}
+		}
+		if (this.sketch != null && this.strandSketches == null) {
+			this.strandSketches = new long[this.chunkSize * this.sketch.size()];
+			this.seedSketches = new long[this.clusterNumber
+					* this.sketch.size()];
+			repack = true;
 		}
+		if (repack) {
+			this.prepareSeeds();
+		}
+		this.prepareStrands(0, batch.size());
+		this.assign(0, batch.size());
+	}
 
+	/**
+	 * update seeds after one iteration. A new seed takes the median length
+	 * of its members and at each position the base most of the members
+	 * reaching that far agree on, ties go to the smaller character. Empty
+	 * clusters keep their seed.
+	 */
+	private void recalculateSeed() {
+		// strand indices of every cluster, back to back
+		int[] start = new int[this.clusterNumber + 1];
 		for (int i = 0; i < this.clusters.length; i++) {
-			clusterStrings.get(clusters[i]).add(new String(DNAStrands[i]));
+			start[clusters[i] + 1]++;
+		}
+		for (int i = 0; i < this.clusterNumber; i++) {
+			start[i + 1] += start[i];
+		}
+		int[] members = new int[this.clusters.length];
+		int[] fill = Arrays.copyOf(start, this.clusterNumber);
+		for (int i = 0; i < this.clusters.length; i++) {
+			members[fill[clusters[i]]++] = i;
 		}
 
+		ByteBuffer bases = this.strands.bases();
+		int[] record = new int[256];
 		for (int i = 0; i < this.clusterNumber; i++) {
-			StringBuilder newSeed = new StringBuilder();
-			for (int j = 0; j < this.DNALength; j++) {
-				HashMap<Character, Integer> record = new HashMap<Character, Integer>();
-				for (String tempDNA : clusterStrings.get(i)) {
-					char temp = tempDNA.charAt(j);
-					if (record.containsKey(temp)) {
-						record.put(temp, record.get(temp) + 1);
-					} else {
-						record.put(temp, 1);
+			int size = start[i + 1] - start[i];
+			if (size == 0) {
+				this.seedChanged[i] = false;
+				continue;
+			}
+			int[] lengths = new int[size];
+			for (int m = 0; m < size; m++) {
+				lengths[m] = this.strands.length(members[start[i] + m]);
+			}
+			Arrays.sort(lengths);
+			byte[] seed = new byte[lengths[(size - 1) / 2]];
+			for (int j = 0; j < seed.length; j++) {
+				int choiceBase = 0;
+				int max = 0;
+				for (int m = start[i]; m < start[i + 1]; m++) {
+					if (this.strands.length(members[m]) > j) {
+						int temp = bases.get(this.strands.offset(members[m]) + j) & 0xFF;
+						record[temp]++;
+						if (record[temp] > max
+								|| (record[temp] == max && temp < choiceBase)) {
+							choiceBase = temp;
+							max = record[temp];
+						}
 					}
 				}
-				char choiceBase = '\0';
-				int max = 0;
-				for (char temp : record.keySet()) {
-					if (record.get(temp) > max) {
-						choiceBase = temp;
-						max = record.get(temp);
+				for (int m = start[i]; m < start[i + 1]; m++) {
+					if (this.strands.length(members[m]) > j) {
+						record[bases.get(this.strands.offset(members[m]) + j) & 0xFF] = 0;
 					}
 				}
-				newSeed.append(choiceBase);
+				seed[j] = (byte) choiceBase;
 			}
-			seeds[i] = newSeed.toString().toCharArray();
+			this.seedChanged[i] = !Arrays.equals(seeds[i], seed);
+			seeds[i] = seed;
 		}
 	}
 
 	public void printCluster() {
+		this.printCluster(this.output);
+	}
+
+	private void printCluster(String filename) {
 		if (this.rank == 0) {
 			try {
 				BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(new File(this.output))));
-				for (int i = 0; i < DNAStrands.length; i++) {
-					bw.write(new String(DNAStrands[i]) + " belongs to "
-							+ " cluster " + clusters[i]  + "\n");
+						new FileOutputStream(new File(filename))));
+				for (int p : this.inputOrder()) {
+					bw.write(this.strands.toString(p) + " belongs to "
+							+ " cluster " + clusters[p]  + "\n");
 				}
 				bw.close();
 			} catch (FileNotFoundException e) {
@@ -297,29 +1536,36 @@ public class MPIDNACluster {
 	 * calculate the edit distance between two DNA
 	 * by counting the minimum number of operations(Insertion, Deletion, Substitution) 
 	 * required to transform one string into the other. 
-	 * @param DNAStrand1
-	 * @param DNAStrand2
+	 * Only one row of the table is kept.
+	 * @param strand
+	 * @param from
+	 *            first base of the strand
+	 * @param length
+	 * @param seed
 	 * @return
 	 */
-	private int distance(char[] DNAStrand1, char[] DNAStrand2) {
-		int len = DNAStrand1.length;
-		int record[][] = new int[len + 1][len + 1];
-		// initial state
-		record[0][0] = 0;
-		for (int i = 1; i <= len; i++)
-			// need to begin form index 0 which means word1 has no character
-			record[i][0] = i;
-		for (int i = 1; i <= len; i++)
-			record[0][i] = i;
-		for (int i = 1; i <= len; i++) {
+	private int distance(ByteBuffer strand, int from, int length, byte[] seed) {
+		int len = seed.length;
+		if (this.row == null || this.row.length < len + 1) {
+			this.row = new int[len + 1];
+		}
+		int[] record = this.row;
+		// initial state: the strand has no character yet
+		for (int j = 0; j <= len; j++)
+			record[j] = j;
+		for (int i = 1; i <= length; i++) {
+			byte base = strand.get(from + i - 1);
+			int diagonal = record[0];
+			record[0] = i;
 			for (int j = 1; j <= len; j++) {
-				int temp = Math.min(record[i - 1][j] + 1, record[i][j - 1] + 1);
-				record[i][j] = Math.min(record[i - 1][j - 1]
-						+ (DNAStrand1[i - 1] == DNAStrand2[j - 1] ? 0 : 1),
+				int up = record[j];
+				int temp = Math.min(up + 1, record[j - 1] + 1);
+				record[j] = Math.min(diagonal + (base == seed[j - 1] ? 0 : 1),
 						temp);
+				diagonal = up;
 			}
 		}
-		return record[len][len];
+		return record[len];
 	}
 
 }
@@ -0,0 +1,95 @@
+package DNA;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * DNA strands packed two bits per base, 32 bases per long, for the Hamming
+ * metric. A, C, G and T map to 0 to 3, any other character is packed as A.
+ * Strands of one data set are stored back to back in one long[] or
+ * LongBuffer, each one taking the number of words of the longest strand.
+ */
+public class PackedStrand {
+
+	private static final long LOW_BITS = 0x5555555555555555L;
+
+	/**
+	 * number of longs needed for a strand of the given length
+	 */
+	public static int words(int length) {
+		return (length + 31) / 32;
+	}
+
+	static long code(byte base) {
+		switch (base) {
+		case 'C':
+			return 1;
+		case 'G':
+			return 2;
+		case 'T':
+			return 3;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * pack bases [from, from + length) of a strand into dest starting at
+	 * offset, using words(length) longs
+	 */
+	public static void pack(byte[] strand, int from, int length, long[] dest,
+			int offset) {
+		pack(ByteBuffer.wrap(strand), from, length, LongBuffer.wrap(dest),
+				offset);
+	}
+
+	/**
+	 * pack a strand held in a buffer, indices are absolute
+	 */
+	public static void pack(ByteBuffer strand, int from, int length,
+			LongBuffer dest, int offset) {
+		int words = words(length);
+		for (int w = 0; w < words; w++) {
+			long word = 0;
+			int end = Math.min(length, (w + 1) * 32);
+			for (int i = w * 32; i < end; i++) {
+				word |= code(strand.get(from + i)) << (2 * (i & 31));
+			}
+			dest.put(offset + w, word);
+		}
+	}
+
+	/**
+	 * number of positions at which two packed strands differ. A base differs
+	 * when either bit of its pair differs, the pairs are folded onto their
+	 * low bit and counted with one popcount per word. Strands of different
+	 * lengths are compared over the shorter one, every base the longer one
+	 * has beyond it counts as a difference.
+	 */
+	public static int hamming(long[] a, int aOffset, int aLength, long[] b,
+			int bOffset, int bLength) {
+		return hamming(LongBuffer.wrap(a), aOffset, aLength,
+				LongBuffer.wrap(b), bOffset, bLength);
+	}
+
+	/**
+	 * hamming() over packed strands held in buffers, indices are absolute
+	 */
+	public static int hamming(LongBuffer a, int aOffset, int aLength,
+			LongBuffer b, int bOffset, int bLength) {
+		int length = Math.min(aLength, bLength);
+		int full = length / 32;
+		int count = Math.abs(aLength - bLength);
+		for (int w = 0; w < full; w++) {
+			long x = a.get(aOffset + w) ^ b.get(bOffset + w);
+			count += Long.bitCount((x | (x >>> 1)) & LOW_BITS);
+		}
+		int rest = length & 31;
+		if (rest > 0) {
+			long x = a.get(aOffset + full) ^ b.get(bOffset + full);
+			long mask = (1L << (2 * rest)) - 1;
+			count += Long.bitCount((x | (x >>> 1)) & LOW_BITS & mask);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,87 @@
+package DNA;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks the packed Hamming distance against a loop over the characters,
+ * for strands of every length around the word boundaries, strands of
+ * different lengths and characters other than ACGT.
+ */
+public class PackedStrandCheck {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T', 'N' };
+
+	public static void main(String[] args) {
+		Random rand = new Random(1);
+		for (int trial = 0; trial < 2000; trial++) {
+			byte[] a = strand(rand, rand.nextInt(100));
+			// half of the pairs are close, the others random
+			byte[] b = rand.nextBoolean() ? mutate(rand, a) : strand(rand,
+					rand.nextInt(100));
+			int expected = reference(a, b);
+
+			int words = PackedStrand.words(Math.max(a.length, b.length));
+			long[] packedA = new long[words + 1];
+			long[] packedB = new long[words + 2];
+			PackedStrand.pack(a, 0, a.length, packedA, 1);
+			PackedStrand.pack(b, 0, b.length, packedB, 2);
+			Check.that(PackedStrand.hamming(packedA, 1, a.length, packedB, 2,
+					b.length) == expected, "hamming of " + new String(a)
+					+ " and " + new String(b));
+			Check.that(PackedStrand.hamming(packedB, 2, b.length, packedA, 1,
+					a.length) == expected, "hamming is symmetric");
+
+			// direct buffers, the strand starts inside a larger buffer
+			ByteBuffer bases = ByteBuffer.allocateDirect(a.length + 3);
+			bases.position(3);
+			bases.put(a);
+			LongBuffer direct = ByteBuffer.allocateDirect(8 * words)
+					.order(ByteOrder.nativeOrder()).asLongBuffer();
+			PackedStrand.pack(bases, 3, a.length, direct, 0);
+			Check.that(PackedStrand.hamming(direct, 0, a.length,
+					LongBuffer.wrap(packedB), 2, b.length) == expected,
+					"hamming over direct buffers");
+		}
+		System.out.println("PackedStrandCheck: ok");
+	}
+
+	private static byte[] strand(Random rand, int length) {
+		byte[] strand = new byte[length];
+		for (int i = 0; i < length; i++) {
+			strand[i] = BASES[rand.nextInt(BASES.length)];
+		}
+		return strand;
+	}
+
+	private static byte[] mutate(Random rand, byte[] strand) {
+		byte[] copy = strand.clone();
+		for (int m = rand.nextInt(4); m > 0 && copy.length > 0; m--) {
+			copy[rand.nextInt(copy.length)] = BASES[rand.nextInt(BASES.length)];
+		}
+		return copy;
+	}
+
+	/**
+	 * positions where the bases differ once packed, other characters pack
+	 * as A, plus the bases the longer strand has beyond the shorter
+	 */
+	private static int reference(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		int count = Math.abs(a.length - b.length);
+		for (int i = 0; i < length; i++) {
+			if (packed(a[i]) != packed(b[i])) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static char packed(byte base) {
+		return "CGT".indexOf(base) < 0 ? 'A' : (char) base;
+	}
+}
@@ -4,19 +4,19 @@ package DNA;
  * @author Nicolas_Yu
  *
  */
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
 
+import Cluster.StopCriteria;
+
 public class SeqDNACluster {
 	
 	private ArrayList<String> DNAStrands;
@@ -24,24 +24,32 @@ public class SeqDNACluster {
 	private int clusterNumber;
 	private ArrayList<HashSet<String>> clusters;
     private String output="SeqDNACluster.csv";
+    // Hamming metric on 2-bit packed strands instead of edit distance
+    private boolean hamming;
+    // k-mer sketch pre-filter, null compares every seed exactly
+    private KmerSketch sketch;
+    private int candidates;
+    // when to stop iterating
+    private StopCriteria criteria = new StopCriteria();
 
     /**
-     * read data from file
+     * read data from file, FASTA, FASTQ or one strand per line
      */
 	public void readData(String filename) {
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(filename));
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				DNAStrands.add(line);
+			StrandBuffer strands = SequenceReader.read(filename, 0);
+			for (int i = 0; i < strands.size(); i++) {
+				DNAStrands.add(strands.toString(i));
 			}
-			br.close();
 		} catch (FileNotFoundException e) {
 			System.out.println(filename + " does not exist!");
 			System.exit(-1);
 		} catch (IOException e) {
 			System.out.println("I/O Exception while reading the data");
 			System.exit(-1);
+		} catch (IllegalStateException e) { // too large for one buffer
+			System.out.println(filename + ": " + e.getMessage());
+			System.exit(-1);
 		}
 	}
 
@@ -66,21 +74,37 @@ public class SeqDNACluster {
 	 * @return
 	 */ 
 	private int distance(String DNAStrand1, String DNAStrand2) {
-		int len = DNAStrand1.length();
-        int record[][] = new int[len+1][len+1];
+		int len1 = DNAStrand1.length();
+		int len2 = DNAStrand2.length();
+        int record[][] = new int[len1+1][len2+1];
         //initial state
         record[0][0] = 0;
-        for (int i = 1; i <= len; i++) // need to begin form index 0 which means word1 has no character
+        for (int i = 1; i <= len1; i++) // need to begin form index 0 which means word1 has no character
             record[i][0] = i;
-        for (int i = 1; i <= len; i++)
+        for (int i = 1; i <= len2; i++)
             record[0][i] = i;
-        for (int i = 1; i <= len; i++) {
-            for (int j = 1; j <= len; j++) {
+        for (int i = 1; i <= len1; i++) {
+            for (int j = 1; j <= len2; j++) {
                 int temp = Math.min(record[i-1][j] + 1, record[i][j-1] + 1);
                 record[i][j] = Math.min(record[i-1][j-1] + (DNAStrand1.charAt(i-1) == DNAStrand2.charAt(j-1) ? 0 : 1), temp);
             }
         }   
-        return record[len][len];
+        return record[len1][len2];
+	}
+
+	/**
+	 * number of differing positions of two DNA, every base the longer one
+	 * has beyond the shorter one counts as a difference
+	 */
+	private int hamming(String DNAStrand1, String DNAStrand2) {
+		int len = Math.min(DNAStrand1.length(), DNAStrand2.length());
+		int count = Math.abs(DNAStrand1.length() - DNAStrand2.length());
+		for (int i = 0; i < len; i++) {
+			if (DNAStrand1.charAt(i) != DNAStrand2.charAt(i)) {
+				count++;
+			}
+		}
+		return count;
 	}
 
 	/**
@@ -95,15 +119,47 @@ public class SeqDNACluster {
 	}
 
 	public static void main(String args[]) {
-		if (args.length != 3) {
-			System.out
-					.println("Usage: Java SeqDNACluster <Input> <ClusterNumber> <Output>");
+		boolean hamming = false;
+		int candidates = 0;
+		int kmer = 8;
+		StopCriteria criteria = new StopCriteria();
+		int pos = 0;
+		while (pos < args.length && args[pos].startsWith("-")) {
+			int next = criteria.parse(args, pos);
+			if (next > pos) {
+				pos = next;
+				continue;
+			}
+			String option = args[pos++];
+			if (option.equals("-metric") && pos < args.length) {
+				String metric = args[pos++];
+				if (metric.equals("hamming")) {
+					hamming = true;
+				} else if (!metric.equals("edit")) {
+					usage();
+				}
+			} else if (option.equals("-candidates") && pos < args.length) {
+				candidates = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-kmer") && pos < args.length) {
+				kmer = Integer.parseInt(args[pos++]);
+			} else {
+				usage();
+			}
+		}
+		if (args.length - pos != 3) {
+			usage();
 		}
 
-		SeqDNACluster spc = new SeqDNACluster(Integer.parseInt(args[1]));
-		spc.readData(args[0]);
+		SeqDNACluster spc = new SeqDNACluster(Integer.parseInt(args[pos + 1]));
+		spc.hamming = hamming;
+		spc.criteria = criteria;
+		if (candidates > 0 && candidates < spc.clusterNumber) {
+			spc.sketch = new KmerSketch(kmer, 32);
+			spc.candidates = candidates;
+		}
+		spc.readData(args[pos]);
 		spc.initSeed();
-        spc.output = args[2];
+        spc.output = args[pos + 2];
 		long start = System.currentTimeMillis();
 		spc.iteration();
 		long time = System.currentTimeMillis() - start;
@@ -112,30 +168,52 @@ public class SeqDNACluster {
 
 	}
 
+	private static void usage() {
+		System.out
+				.println("Usage: Java SeqDNACluster [-metric <edit|hamming>] [-candidates <c>] [-kmer <k>] "
+						+ StopCriteria.USAGE + " <Input> <ClusterNumber> <Output>");
+		System.exit(-1);
+	}
+
 	/**
-	 * update seeds after one iteration 
+	 * update seeds after one iteration. A new seed takes the median length
+	 * of its members and at each position the base most of the members
+	 * reaching that far agree on, ties go to the smaller character. Empty
+	 * clusters keep their seed.
 	 */
 	private void recalculateSeed() {
+		int[] record = new int[Character.MAX_VALUE + 1];
 		for (int i = 0; i < this.clusters.size(); i++) {
+			HashSet<String> cluster = this.clusters.get(i);
+			int size = cluster.size();
+			if (size == 0) {
+				continue;
+			}
+			int[] lengths = new int[size];
+			int n = 0;
+			for (String p : cluster) {
+				lengths[n++] = p.length();
+			}
+			Arrays.sort(lengths);
+			int len = lengths[(size - 1) / 2];
 			StringBuilder newSeed = new StringBuilder();
-			int size = this.clusters.get(i).size();
-			int len = this.DNAStrands.get(0).length();
 			for (int j = 0; j < len; j++) {
-				HashMap<Character, Integer> record = new HashMap<Character, Integer>();
-				for (String p : this.clusters.get(i)) {
-					char temp = p.charAt(j);
-					if (record.containsKey(temp)) {
-						record.put(temp, record.get(temp)+1);
-					} else {
-						record.put(temp, 1);
-					}
-				}
 				char choiceBase = '\0';
 				int max = 0;
-				for (char temp : record.keySet()) {
-					if (record.get(temp) > max) {
-						choiceBase = temp;
-						max = record.get(temp);
+				for (String p : cluster) {
+					if (p.length() > j) {
+						char temp = p.charAt(j);
+						record[temp]++;
+						if (record[temp] > max
+								|| (record[temp] == max && temp < choiceBase)) {
+							choiceBase = temp;
+							max = record[temp];
+						}
+					}
+				}
+				for (String p : cluster) {
+					if (p.length() > j) {
+						record[p.charAt(j)] = 0;
 					}
 				}
 				newSeed.append(choiceBase);
@@ -151,6 +229,43 @@ public class SeqDNACluster {
 	public void iteration() {
 		boolean changed = true; // sign bit for whether need a another iteration
 		int count = 0;
+		int[] labels = new int[this.DNAStrands.size()];
+		Arrays.fill(labels, -1);
+		this.criteria.start();
+
+		// with the Hamming metric strands are packed once, seeds every round
+		int words = 0;
+		long[] packedStrands = null;
+		long[] packedSeeds = null;
+		if (this.hamming) {
+			int maxLength = 0;
+			for (String dnaStrand : this.DNAStrands) {
+				maxLength = Math.max(maxLength, dnaStrand.length());
+			}
+			words = PackedStrand.words(maxLength);
+			packedStrands = new long[this.DNAStrands.size() * words];
+			packedSeeds = new long[this.clusterNumber * words];
+			for (int i = 0; i < this.DNAStrands.size(); i++) {
+				byte[] strand = this.DNAStrands.get(i).getBytes();
+				PackedStrand.pack(strand, 0, strand.length, packedStrands, i
+						* words);
+			}
+		}
+		// with the pre-filter strands are sketched once, seeds every round
+		long[] strandSketches = null;
+		long[] seedSketches = null;
+		int[] chosen = new int[this.candidates];
+		int[] score = new int[this.candidates];
+		if (this.sketch != null) {
+			int size = this.sketch.size();
+			strandSketches = new long[this.DNAStrands.size() * size];
+			seedSketches = new long[this.clusterNumber * size];
+			for (int i = 0; i < this.DNAStrands.size(); i++) {
+				byte[] strand = this.DNAStrands.get(i).getBytes();
+				this.sketch.sketch(strand, 0, strand.length, strandSketches, i
+						* size);
+			}
+		}
 
 		while (changed) {
 			count++;
@@ -162,36 +277,74 @@ public class SeqDNACluster {
 				newClusters.add(new HashSet<String>());
 			}
 
+			if (this.hamming) {
+				for (int i = 0; i < this.seeds.size(); i++) {
+					byte[] seed = seeds.get(i).getBytes();
+					PackedStrand.pack(seed, 0, seed.length, packedSeeds, i
+							* words);
+				}
+			}
+			if (this.sketch != null) {
+				for (int i = 0; i < this.seeds.size(); i++) {
+					byte[] seed = seeds.get(i).getBytes();
+					this.sketch.sketch(seed, 0, seed.length, seedSketches, i
+							* this.sketch.size());
+				}
+			}
+
 			// calculate each point and put them into the cluster
-			for (String dnaStrand : this.DNAStrands) {
-				double distance = Integer.MAX_VALUE;
+			long objective = 0;
+			int reassigned = 0;
+			for (int n = 0; n < this.DNAStrands.size(); n++) {
+				String dnaStrand = this.DNAStrands.get(n);
+				int distance = Integer.MAX_VALUE;
 				int index = -1;
-				for (int i = 0; i < this.seeds.size(); i++) {
+				if (this.sketch != null) {
+					this.sketch.candidates(strandSketches, n
+							* this.sketch.size(), seedSketches,
+							this.clusterNumber, this.candidates, chosen, score);
+				}
+				int seedCount = this.sketch != null ? chosen.length : this.seeds.size();
+				for (int c = 0; c < seedCount; c++) {
+					int i = this.sketch != null ? chosen[c] : c;
 					String seed = seeds.get(i);
-					double dis = distance(dnaStrand, seed);
+					int dis = this.hamming ? PackedStrand.hamming(
+							packedStrands, n * words, dnaStrand.length(),
+							packedSeeds, i * words, seed.length())
+							: distance(dnaStrand, seed);
 					if (dis < distance) {
 						distance = dis;
 						index = i;
 					}
 				}
 				newClusters.get(index).add(dnaStrand);
+				objective += distance;
+				if (labels[n] != index) {
+					labels[n] = index;
+					reassigned++;
+				}
 			}
 
 			// compare whether each cluster has changed or not
-
-			for (int i = 0; i < this.clusters.size(); i++) {
-				if (this.clusters.get(i).equals(newClusters.get(i))) {
-					changed = false;
-					continue;
-				} else {
-					this.clusters = newClusters;
-					this.recalculateSeed();
-					changed = true;
-					break;
+			this.clusters = newClusters;
+			changed = !this.criteria.assigned(reassigned, labels.length,
+					objective);
+			if (changed) {
+				ArrayList<String> previous = new ArrayList<String>(this.seeds);
+				this.recalculateSeed();
+				if (this.criteria.usesShift()) {
+					int shift = 0;
+					for (int i = 0; i < this.seeds.size(); i++) {
+						shift = Math.max(shift, this.hamming ? hamming(
+								previous.get(i), this.seeds.get(i)) : distance(
+								previous.get(i), this.seeds.get(i)));
+					}
+					changed = !this.criteria.moved(shift);
 				}
 			}
 
 		}
+		this.criteria.report();
 
 	}
 
@@ -0,0 +1,197 @@
+package DNA;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader for DNA data sets. The format is taken from the first
+ * character of the file: '>' starts FASTA records whose sequence may span
+ * several lines, '@' starts FASTQ records whose quality lines are skipped,
+ * anything else is read as one strand per line. Bases are upper cased and
+ * appended straight into a StrandBuffer, no line is kept as a String.
+ * Empty records are dropped. A file is read whole with read() or in
+ * batches of strands with open() and next().
+ */
+public class SequenceReader {
+
+	private static final int RAW = 0;
+	private static final int FASTA = 1;
+	private static final int FASTQ = 2;
+
+	// at the start of a line
+	private static final int START = 0;
+	// skipping the rest of a header or comment line
+	private static final int SKIP = 1;
+	// inside a sequence line
+	private static final int SEQUENCE = 2;
+	// skipping the FASTQ '+' line, the quality follows
+	private static final int PLUS = 3;
+	// skipping quality characters
+	private static final int QUALITY = 4;
+
+	private InputStream in;
+	private byte[] buffer = new byte[1 << 16];
+	// bytes of buffer filled from the file and already accepted
+	private int filled;
+	private int position;
+	private StrandBuffer strands;
+	private int limit;
+	private int format = -1;
+	private int state = START;
+	// quality characters still to skip in the current FASTQ record
+	private int quality;
+
+	private SequenceReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * open a file to read its strands batch by batch with next()
+	 */
+	public static SequenceReader open(String filename) throws IOException {
+		return new SequenceReader(new FileInputStream(filename));
+	}
+
+	/**
+	 * read the strands of a file
+	 * @param filename
+	 * @param limit
+	 *            maximal number of strands to read, 0 reads them all
+	 */
+	public static StrandBuffer read(String filename, int limit)
+			throws IOException {
+		return read(filename, limit, false);
+	}
+
+	/**
+	 * read the strands of a file into a direct buffer outside of the heap
+	 * when direct is set
+	 */
+	public static StrandBuffer read(String filename, int limit,
+			boolean direct) throws IOException {
+		SequenceReader reader = open(filename);
+		try {
+			return reader.next(limit, direct);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * the next strands of the file
+	 * @param count
+	 *            maximal number of strands to read, 0 reads all the rest
+	 * @param direct
+	 *            whether the bases go to a direct buffer
+	 * @return an empty buffer at the end of the file
+	 */
+	public StrandBuffer next(int count, boolean direct) throws IOException {
+		return this.next(new StrandBuffer(direct), count);
+	}
+
+	/**
+	 * read the next strands of the file into a buffer, which is cleared
+	 * first and keeps its memory
+	 * @return strands, empty at the end of the file
+	 */
+	public StrandBuffer next(StrandBuffer strands, int count)
+			throws IOException {
+		strands.clear();
+		this.strands = strands;
+		this.limit = count;
+		while (!this.full()) {
+			if (this.position == this.filled) {
+				this.filled = Math.max(0, this.in.read(this.buffer));
+				this.position = 0;
+				if (this.filled == 0) {
+					this.endStrand();
+					break;
+				}
+			}
+			this.accept(this.buffer[this.position++]);
+		}
+		return this.strands;
+	}
+
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	private boolean full() {
+		return this.limit > 0 && this.strands.size() >= this.limit;
+	}
+
+	private void endStrand() {
+		if (this.strands.pendingLength() > 0) {
+			this.strands.endStrand();
+		}
+	}
+
+	private void accept(byte b) {
+		if (b == '\r') {
+			return;
+		}
+		switch (this.state) {
+		case SKIP:
+			if (b == '\n') {
+				this.state = START;
+			}
+			return;
+		case PLUS:
+			if (b == '\n') {
+				this.state = this.quality > 0 ? QUALITY : START;
+			}
+			return;
+		case QUALITY:
+			if (b != '\n' && --this.quality == 0) {
+				this.state = SKIP;
+			}
+			return;
+		case START:
+			if (b == '\n') {
+				return;
+			}
+			if (this.format < 0) {
+				this.format = b == '>' ? FASTA : b == '@' ? FASTQ : RAW;
+			}
+			if (this.format == FASTA && (b == '>' || b == ';')) {
+				this.endStrand();
+				this.state = SKIP;
+				return;
+			}
+			if (this.format == FASTQ && b == '@') {
+				this.state = SKIP;
+				return;
+			}
+			if (this.format == FASTQ && b == '+') {
+				this.quality = this.strands.pendingLength();
+				this.endStrand();
+				this.state = PLUS;
+				return;
+			}
+			this.state = SEQUENCE;
+			this.base(b);
+			return;
+		default: // SEQUENCE
+			if (b != '\n') {
+				this.base(b);
+			} else {
+				if (this.format == RAW) {
+					this.endStrand();
+				}
+				this.state = START;
+			}
+		}
+	}
+
+	private void base(byte b) {
+		if (b == ' ' || b == '\t') {
+			return;
+		}
+		if (b >= 'a' && b <= 'z') {
+			b -= 'a' - 'A';
+		}
+		this.strands.appendBase(b);
+	}
+}
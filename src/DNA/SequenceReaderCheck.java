@@ -0,0 +1,114 @@
+package DNA;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks the strands SequenceReader gives for FASTA, FASTQ and plain files
+ * with the cases real files bring: sequences over several lines, CRLF line
+ * ends, blank lines, lower case, comments, empty records, quality lines
+ * starting with '@' or a base and a missing newline at the end. Reading in
+ * batches, into direct buffers and across the read buffer has to give the
+ * same strands as reading the file at once.
+ */
+public class SequenceReaderCheck {
+
+	public static void main(String[] args) throws IOException {
+		check("\n>one\r\nACGT\r\nacg\r\n\r\n>empty\n;comment\n"
+				+ ">two desc\nTT GG\nA", "ACGTACG", "TTGGA");
+		check("@r1\nACGT\n+\nII@+\n@r2\r\nGGC\r\n+r2\r\n@+@\r\n",
+				"ACGT", "GGC");
+		check("ACGT\n\n  \nacgt\r\nT", "ACGT", "ACGT", "T");
+		check("");
+
+		// many strands and one longer than the read buffer
+		Random rand = new Random(1);
+		ArrayList<String> strands = new ArrayList<String>();
+		StringBuilder fasta = new StringBuilder();
+		StringBuilder fastq = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			int length = i == 1500 ? 100000 : 1 + rand.nextInt(120);
+			StringBuilder strand = new StringBuilder();
+			for (int j = 0; j < length; j++) {
+				strand.append("ACGT".charAt(rand.nextInt(4)));
+			}
+			strands.add(strand.toString());
+			fasta.append(">s").append(i).append('\n');
+			for (int j = 0; j < length; j += 60) {
+				fasta.append(strand, j, Math.min(length, j + 60)).append('\n');
+			}
+			fastq.append("@s").append(i).append('\n').append(strand)
+					.append("\n+\n");
+			for (int j = 0; j < length; j++) {
+				fastq.append("A@+I".charAt((i + j) % 4));
+			}
+			fastq.append('\n');
+		}
+		String[] expected = strands.toArray(new String[strands.size()]);
+		check(fasta.toString(), expected);
+		check(fastq.toString(), expected);
+		System.out.println("SequenceReaderCheck: ok");
+	}
+
+	/**
+	 * read the content whole, into a direct buffer and in batches of a few
+	 * sizes and compare every time with the expected strands
+	 */
+	private static void check(String content, String... expected)
+			throws IOException {
+		File file = File.createTempFile("SequenceReaderCheck", ".txt");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes("US-ASCII"));
+		out.close();
+		String name = file.getPath();
+		String what = content.length() > 60 ? content.length() + " characters"
+				: "\"" + content + "\"";
+
+		compare(strings(SequenceReader.read(name, 0)), expected, what);
+		compare(strings(SequenceReader.read(name, 0, true)), expected, what
+				+ " into a direct buffer");
+		if (expected.length > 1) {
+			compare(strings(SequenceReader.read(name, expected.length - 1)),
+					Arrays.copyOf(expected, expected.length - 1), what
+							+ " with a limit");
+		}
+		int[] batches = { 1, 2, 7, 1000 };
+		for (int count : batches) {
+			ArrayList<String> read = new ArrayList<String>();
+			SequenceReader reader = SequenceReader.open(name);
+			StrandBuffer strands = new StrandBuffer(count == 7);
+			while (reader.next(strands, count).size() > 0) {
+				if (strands.size() > count) {
+					Check.fail(what + " gives a batch larger than " + count);
+				}
+				read.addAll(Arrays.asList(strings(strands)));
+			}
+			reader.close();
+			compare(read.toArray(new String[read.size()]), expected, what
+					+ " in batches of " + count);
+		}
+	}
+
+	private static String[] strings(StrandBuffer strands) {
+		String[] strings = new String[strands.size()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = strands.toString(i);
+		}
+		return strings;
+	}
+
+	private static void compare(String[] read, String[] expected, String what) {
+		if (!Arrays.equals(read, expected)) {
+			Check.fail(what + " gives " + read.length + " strands "
+					+ (read.length < 5 ? Arrays.toString(read) : "")
+					+ " instead of " + expected.length);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package DNA;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * DNA strands of any length stored back to back in one byte buffer, one
+ * byte per base. Strand i occupies bases[offsets[i], offsets[i + 1]). The
+ * bases are kept on the heap or in a direct buffer outside of it.
+ */
+public class StrandBuffer {
+
+	// the largest array or buffer a JVM reliably allocates, which bounds the
+	// bases and the strands of one buffer as the offsets are ints
+	static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	private ByteBuffer bases;
+	private int[] offsets;
+	private int count;
+	// bases appended to the strand that is not finished yet
+	private int pendingLength;
+
+	public StrandBuffer() {
+		this(false);
+	}
+
+	public StrandBuffer(boolean direct) {
+		this.bases = allocate(1 << 16, direct);
+		this.offsets = new int[1024];
+	}
+
+	/**
+	 * wrap received bases, offsets must hold count + 1 entries starting at 0
+	 */
+	public StrandBuffer(ByteBuffer bases, int[] offsets, int count) {
+		this.bases = bases;
+		this.offsets = offsets;
+		this.count = count;
+	}
+
+	static ByteBuffer allocate(int size, boolean direct) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+				.allocate(size);
+	}
+
+	/**
+	 * the capacity to grow a full buffer or array of size entries to,
+	 * doubling up to MAX_SIZE
+	 * @throws IllegalStateException
+	 *             when it holds MAX_SIZE entries already
+	 */
+	static int grow(int size, String what) {
+		if (size >= MAX_SIZE) {
+			throw new IllegalStateException("more than " + MAX_SIZE + " "
+					+ what + " do not fit one StrandBuffer");
+		}
+		return (int) Math.min(2L * size, MAX_SIZE);
+	}
+
+	/**
+	 * drop all strands, the memory is kept for the next ones
+	 */
+	public void clear() {
+		this.count = 0;
+		this.pendingLength = 0;
+	}
+
+	public int size() {
+		return this.count;
+	}
+
+	public ByteBuffer bases() {
+		return this.bases;
+	}
+
+	/**
+	 * the bases as a message buffer, the backing array of heap bases
+	 */
+	public Object message() {
+		return this.bases.hasArray() ? this.bases.array() : this.bases;
+	}
+
+	public int[] offsets() {
+		return this.offsets;
+	}
+
+	public int offset(int i) {
+		return this.offsets[i];
+	}
+
+	public int length(int i) {
+		return this.offsets[i + 1] - this.offsets[i];
+	}
+
+	public int maxLength() {
+		int max = 0;
+		for (int i = 0; i < this.count; i++) {
+			max = Math.max(max, this.length(i));
+		}
+		return max;
+	}
+
+	/**
+	 * the bases of strand i in a new array
+	 */
+	public byte[] copy(int i) {
+		byte[] strand = new byte[this.length(i)];
+		this.bases.get(this.offsets[i], strand, 0, strand.length);
+		return strand;
+	}
+
+	public String toString(int i) {
+		return new String(this.copy(i));
+	}
+
+	/**
+	 * a copy of the buffer holding strand order[p] at position p
+	 */
+	public StrandBuffer permute(int[] order) {
+		int[] offsets = new int[order.length + 1];
+		for (int p = 0; p < order.length; p++) {
+			offsets[p + 1] = offsets[p] + this.length(order[p]);
+		}
+		ByteBuffer bases = allocate(offsets[order.length],
+				this.bases.isDirect());
+		for (int p = 0; p < order.length; p++) {
+			bases.put(offsets[p], this.bases, this.offsets[order[p]],
+					offsets[p + 1] - offsets[p]);
+		}
+		return new StrandBuffer(bases, offsets, order.length);
+	}
+
+	/**
+	 * append one base to the strand being built, it becomes visible with
+	 * endStrand()
+	 */
+	void appendBase(byte base) {
+		int end = this.offsets[this.count] + this.pendingLength;
+		if (end == this.bases.capacity()) {
+			ByteBuffer grown = allocate(grow(end, "bases"),
+					this.bases.isDirect());
+			grown.put(0, this.bases, 0, end);
+			this.bases = grown;
+		}
+		this.bases.put(end, base);
+		this.pendingLength++;
+	}
+
+	int pendingLength() {
+		return this.pendingLength;
+	}
+
+	void endStrand() {
+		if (this.count + 2 > this.offsets.length) {
+			this.offsets = Arrays.copyOf(this.offsets, grow(
+					this.offsets.length, "strands"));
+		}
+		this.offsets[this.count + 1] = this.offsets[this.count]
+				+ this.pendingLength;
+		this.count++;
+		this.pendingLength = 0;
+	}
+}
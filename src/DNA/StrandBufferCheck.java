@@ -0,0 +1,56 @@
+package DNA;
+
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks that a StrandBuffer keeps its strands while the bases and the
+ * offsets grow, and where growing stops: doubling is capped at MAX_SIZE
+ * instead of overflowing past 2^30, and a full buffer fails with a message
+ * rather than a negative size. The boundary is checked on the capacities,
+ * a buffer of 2^31 bases is more than a check should allocate.
+ */
+public class StrandBufferCheck {
+
+	public static void main(String[] args) {
+		int max = StrandBuffer.MAX_SIZE;
+		Check.that(StrandBuffer.grow(16, "bases") == 32, "doubling");
+		Check.that(StrandBuffer.grow(1 << 30, "bases") == max,
+				"growing past 2^30");
+		Check.that(StrandBuffer.grow(max / 2 + 1, "bases") == max,
+				"growing to the maximum");
+		Check.that(StrandBuffer.grow(max - 1, "bases") == max,
+				"growing by less than double");
+		try {
+			StrandBuffer.grow(max, "bases");
+			Check.fail("growing a full buffer");
+		} catch (IllegalStateException e) {
+			Check.that(e.getMessage().contains("bases"), "message "
+					+ e.getMessage());
+		}
+
+		// several doublings of the bases and of the offsets
+		Random rand = new Random(1);
+		for (boolean direct : new boolean[] { false, true }) {
+			StrandBuffer strands = new StrandBuffer(direct);
+			String[] expected = new String[5000];
+			for (int i = 0; i < expected.length; i++) {
+				StringBuilder strand = new StringBuilder();
+				int length = i % 1000 == 0 ? 70000 : rand.nextInt(60);
+				for (int j = 0; j < length; j++) {
+					strand.append("ACGT".charAt(rand.nextInt(4)));
+					strands.appendBase((byte) strand.charAt(j));
+				}
+				strands.endStrand();
+				expected[i] = strand.toString();
+			}
+			Check.that(strands.size() == expected.length, "strand count");
+			for (int i = 0; i < expected.length; i++) {
+				Check.that(strands.toString(i).equals(expected[i]), "strand "
+						+ i + (direct ? " of a direct buffer" : ""));
+			}
+		}
+		System.out.println("StrandBufferCheck: ok");
+	}
+}
@@ -0,0 +1,79 @@
+package DNA;
+
+import java.util.Arrays;
+
+/**
+ * Splits strands over the worker ranks by estimated work instead of by
+ * count. Comparing a strand with a seed of about its length costs L * L
+ * steps of the edit distance table, or L bases with the Hamming metric.
+ * Strands are handed out longest first, each to the part with the least
+ * work so far.
+ */
+public class StrandPartition {
+
+	/**
+	 * estimated work of comparing a strand with one seed
+	 */
+	public static long cost(int length, boolean hamming) {
+		return hamming ? length : (long) length * length;
+	}
+
+	/**
+	 * assign every strand to one of parts parts
+	 * @param strands
+	 * @param parts
+	 * @param hamming
+	 * @param counts
+	 *            receives the number of strands of every part
+	 * @return the strand indices grouped by part, in input order within a
+	 *         part
+	 */
+	public static int[] balance(StrandBuffer strands, int parts,
+			boolean hamming, int[] counts) {
+		int n = strands.size();
+		// length in the high half, index in the low half, sorted ascending
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = ((long) strands.length(i) << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		long[] load = new long[parts];
+		int[] part = new int[n];
+		Arrays.fill(counts, 0, parts, 0);
+		for (int k = n - 1; k >= 0; k--) {
+			int i = (int) keys[k];
+			int lightest = 0;
+			for (int p = 1; p < parts; p++) {
+				if (load[p] < load[lightest]) {
+					lightest = p;
+				}
+			}
+			load[lightest] += cost(strands.length(i), hamming);
+			part[i] = lightest;
+			counts[lightest]++;
+		}
+
+		int[] start = new int[parts];
+		for (int p = 1; p < parts; p++) {
+			start[p] = start[p - 1] + counts[p - 1];
+		}
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[start[part[i]]++] = i;
+		}
+		return order;
+	}
+
+	/**
+	 * the largest load over the mean load, 1 is a perfect balance
+	 */
+	public static double imbalance(double[] loads, int from, int to) {
+		double max = 0, sum = 0;
+		for (int i = from; i < to; i++) {
+			max = Math.max(max, loads[i]);
+			sum += loads[i];
+		}
+		return sum > 0 ? max * (to - from) / sum : 1;
+	}
+}
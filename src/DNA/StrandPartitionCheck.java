@@ -0,0 +1,96 @@
+package DNA;
+
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks that the cost-aware partition hands every strand to exactly one
+ * part, keeps input order within a part, hands out the longest strands
+ * first and leaves the parts no further apart than the cost of one strand,
+ * which is what handing each strand to the lightest part guarantees.
+ */
+public class StrandPartitionCheck {
+
+	public static void main(String[] args) {
+		Check.that(StrandPartition.imbalance(new double[] { 9, 2, 2 }, 1,
+				3) == 1, "imbalance of equal loads");
+		Check.that(StrandPartition.imbalance(new double[] { 1, 3 }, 0,
+				2) == 1.5, "imbalance of 1 and 3");
+		Check.that(StrandPartition.imbalance(new double[] { 0, 0 }, 0,
+				2) == 1, "imbalance without load");
+
+		// the long strand has to go first for the parts to come out even
+		StrandBuffer small = new StrandBuffer();
+		for (int length : new int[] { 1, 1, 4, 1, 1 }) {
+			for (int j = 0; j < length; j++) {
+				small.appendBase((byte) 'A');
+			}
+			small.endStrand();
+		}
+		int[] counts = new int[2];
+		int[] order = StrandPartition.balance(small, 2, true, counts);
+		Check.that(counts[0] == 1 && order[0] == 2 && counts[1] == 4,
+				"longest strand first");
+
+		Random rand = new Random(1);
+		int[] sizes = { 0, 1, 5, 1000 };
+		int[] partCounts = { 1, 3, 7 };
+		for (int n : sizes) {
+			// mostly short strands and a few very long ones
+			StrandBuffer strands = new StrandBuffer();
+			for (int i = 0; i < n; i++) {
+				int length = rand.nextInt(20) == 0 ? 500 + rand.nextInt(500)
+						: 1 + rand.nextInt(100);
+				for (int j = 0; j < length; j++) {
+					strands.appendBase((byte) 'A');
+				}
+				strands.endStrand();
+			}
+			for (int parts : partCounts) {
+				for (boolean hamming : new boolean[] { false, true }) {
+					check(strands, parts, hamming);
+				}
+			}
+		}
+		System.out.println("StrandPartitionCheck: ok");
+	}
+
+	private static void check(StrandBuffer strands, int parts,
+			boolean hamming) {
+		String what = strands.size() + " strands in " + parts + " parts";
+		int[] counts = new int[parts];
+		int[] order = StrandPartition.balance(strands, parts, hamming, counts);
+		Check.that(order.length == strands.size(), what
+				+ " keeps every strand");
+
+		boolean[] seen = new boolean[strands.size()];
+		long[] load = new long[parts];
+		long largest = 0;
+		int p = 0;
+		for (int part = 0; part < parts; part++) {
+			int previous = -1;
+			for (int c = 0; c < counts[part]; c++, p++) {
+				int i = order[p];
+				Check.that(!seen[i], what + " hands out strand " + i
+						+ " twice");
+				Check.that(i > previous, what + " keeps input order in part "
+						+ part);
+				seen[i] = true;
+				previous = i;
+				long cost = StrandPartition.cost(strands.length(i), hamming);
+				load[part] += cost;
+				largest = Math.max(largest, cost);
+			}
+		}
+		Check.that(p == strands.size(), what + " counts every strand");
+
+		long min = Long.MAX_VALUE, max = 0;
+		for (long l : load) {
+			min = Math.min(min, l);
+			max = Math.max(max, l);
+		}
+		Check.that(max - min <= largest, what + " are " + (max - min)
+				+ " apart, more than the largest strand costs");
+	}
+}
@@ -0,0 +1,168 @@
+package Point;
+
+/**
+ * k-d tree over the seeds of one iteration for nearest seed queries when K
+ * is large. Seeds are stored row by row like in DistanceKernel, each node
+ * splits its seeds at the median of the dimension with the largest spread.
+ *
+ * Distances are summed in the same order as the brute force kernels and
+ * ties go to the lower seed index, so the labels are identical to theirs.
+ */
+public class CentroidTree {
+
+	private static final int LEAF_SIZE = 8;
+
+	private double[] seeds;
+	private int dimension;
+	// seed indices, each node owns a contiguous range of them
+	private int[] order;
+	// per node: range, split dimension (-1 for a leaf) and children
+	private int[] lo;
+	private int[] hi;
+	private int[] splitDim;
+	private double[] splitValue;
+	private int[] left;
+	private int[] right;
+	private int nodes;
+	// result of the last query
+	private double bestDistance;
+	private int bestIndex;
+
+	public CentroidTree(double[] seeds, int k, int dimension) {
+		this.seeds = seeds;
+		this.dimension = dimension;
+		// seeds of empty clusters are NaN and can never be the nearest
+		int valid = 0;
+		this.order = new int[k];
+		for (int j = 0; j < k; j++) {
+			if (!Double.isNaN(seeds[j * dimension])) {
+				this.order[valid++] = j;
+			}
+		}
+		// leaves hold at least LEAF_SIZE / 2 seeds
+		int capacity = 2 * (2 * valid / LEAF_SIZE + 1);
+		this.lo = new int[capacity];
+		this.hi = new int[capacity];
+		this.splitDim = new int[capacity];
+		this.splitValue = new double[capacity];
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.build(0, valid);
+	}
+
+	private int build(int from, int to) {
+		int node = this.nodes++;
+		this.lo[node] = from;
+		this.hi[node] = to;
+		this.splitDim[node] = -1;
+		if (to - from <= LEAF_SIZE) {
+			return node;
+		}
+
+		// split along the dimension with the largest spread
+		int best = 0;
+		double spread = -1;
+		for (int d = 0; d < this.dimension; d++) {
+			double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+			for (int i = from; i < to; i++) {
+				double v = this.seeds[this.order[i] * this.dimension + d];
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			if (max - min > spread) {
+				spread = max - min;
+				best = d;
+			}
+		}
+		int mid = (from + to) / 2;
+		this.select(from, to, mid, best);
+		this.splitDim[node] = best;
+		this.splitValue[node] = this.seeds[this.order[mid] * this.dimension
+				+ best];
+		int l = this.build(from, mid);
+		int r = this.build(mid, to);
+		this.left[node] = l;
+		this.right[node] = r;
+		return node;
+	}
+
+	/**
+	 * partially sort order[from, to) so that position mid holds the median
+	 * along dimension d
+	 */
+	private void select(int from, int to, int mid, int d) {
+		int l = from, r = to - 1;
+		while (l < r) {
+			double pivot = this.value(this.order[(l + r) >>> 1], d);
+			int i = l, j = r;
+			while (i <= j) {
+				while (this.value(this.order[i], d) < pivot) {
+					i++;
+				}
+				while (this.value(this.order[j], d) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int t = this.order[i];
+					this.order[i] = this.order[j];
+					this.order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (mid <= j) {
+				r = j;
+			} else if (mid >= i) {
+				l = i;
+			} else {
+				break;
+			}
+		}
+	}
+
+	private double value(int seed, int d) {
+		return this.seeds[seed * this.dimension + d];
+	}
+
+	/**
+	 * index of the seed nearest to the point, its squared distance is
+	 * available from lastDistance() afterwards
+	 */
+	public int nearest(double[] point) {
+		this.bestDistance = Double.MAX_VALUE;
+		this.bestIndex = 0;
+		if (this.nodes > 0 && this.hi[0] > this.lo[0]) {
+			this.search(0, point);
+		}
+		return this.bestIndex;
+	}
+
+	public double lastDistance() {
+		return this.bestDistance;
+	}
+
+	private void search(int node, double[] point) {
+		int d = this.splitDim[node];
+		if (d < 0) {
+			for (int i = this.lo[node]; i < this.hi[node]; i++) {
+				int j = this.order[i];
+				double dis = DistanceKernel.squaredDistance(point, this.seeds,
+						j * this.dimension);
+				if (dis < this.bestDistance
+						|| (dis == this.bestDistance && j < this.bestIndex)) {
+					this.bestDistance = dis;
+					this.bestIndex = j;
+				}
+			}
+			return;
+		}
+		double diff = point[d] - this.splitValue[node];
+		int near = diff < 0 ? this.left[node] : this.right[node];
+		int far = diff < 0 ? this.right[node] : this.left[node];
+		this.search(near, point);
+		// seeds on the other side are at least |diff| away, ties still count
+		if (diff * diff <= this.bestDistance) {
+			this.search(far, point);
+		}
+	}
+}
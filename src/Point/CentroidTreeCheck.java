@@ -0,0 +1,67 @@
+package Point;
+
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks the nearest seed of the k-d tree against a loop over all seeds,
+ * including seeds of empty clusters, repeated seeds whose ties go to the
+ * lower index and points on the splitting planes.
+ */
+public class CentroidTreeCheck {
+
+	public static void main(String[] args) {
+		Random rand = new Random(1);
+		int[] ks = { 1, 2, 8, 9, 50, 300 };
+		int[] dimensions = { 1, 2, 3, 10 };
+		for (int k : ks) {
+			for (int dimension : dimensions) {
+				double[] seeds = new double[k * dimension];
+				for (int i = 0; i < seeds.length; i++) {
+					// a coarse grid so that distances tie often
+					seeds[i] = rand.nextInt(5);
+				}
+				for (int j = 3; j < k; j += 7) {
+					seeds[j * dimension] = Double.NaN;
+				}
+				CentroidTree tree = new CentroidTree(seeds, k, dimension);
+				double[] point = new double[dimension];
+				for (int p = 0; p < 500; p++) {
+					for (int d = 0; d < dimension; d++) {
+						point[d] = p % 2 == 0 ? rand.nextInt(5) : rand
+								.nextDouble() * 6 - 1;
+					}
+					int expected = nearest(point, seeds, k, dimension);
+					int index = tree.nearest(point);
+					Check.that(index == expected, "nearest of " + k
+							+ " seeds in " + dimension + " dimensions is "
+							+ index + " instead of " + expected);
+					Check.that(tree.lastDistance() == DistanceKernel
+							.squaredDistance(point, seeds, index * dimension),
+							"distance of the nearest seed");
+				}
+			}
+		}
+		System.out.println("CentroidTreeCheck: ok");
+	}
+
+	/**
+	 * nearest seed by brute force, NaN seeds never win and ties go to the
+	 * lower index
+	 */
+	private static int nearest(double[] point, double[] seeds, int k,
+			int dimension) {
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE;
+		for (int j = 0; j < k; j++) {
+			double dis = DistanceKernel.squaredDistance(point, seeds, j
+					* dimension);
+			if (dis < bestDistance) {
+				bestDistance = dis;
+				best = j;
+			}
+		}
+		return best;
+	}
+}
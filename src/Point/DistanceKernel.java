@@ -0,0 +1,156 @@
+package Point;
+
+/**
+ * Nearest seed assignment for D dimensional points kept as structure of
+ * arrays in a PointStore. Seeds are stored row by row, seeds[j * D + d].
+ *
+ * Squared distances are compared so no square root is taken in the argmin.
+ * The Vector API kernel is used when VectorKernel was built and the
+ * jdk.incubator.vector module is available (run with --add-modules
+ * jdk.incubator.vector), otherwise the scalar loop below is used. Both
+ * sum the dimensions in the same order, so they produce identical labels.
+ *
+ * From treeThreshold seeds on, a CentroidTree is built over the seeds and
+ * queried per point instead, as long as the dimension is low enough for a
+ * k-d tree to prune anything. The callers build it with tree() whenever
+ * their seeds change and pass it to every assign() over those seeds.
+ *
+ * The kernels read the coordinates through the PointStore, so the same
+ * loops serve the heap and the direct stores with identical results. Float
+ * coordinates are widened as they are loaded, the distances are summed in
+ * double like for double coordinates.
+ */
+public class DistanceKernel {
+
+	/**
+	 * the SIMD assignment loop, implemented by VectorKernel which is only
+	 * referred to by name so that the rest builds without it
+	 */
+	interface Simd {
+		double assign(PointStore coords, int from, int to, double[] seeds,
+				int k, int[] labels);
+	}
+
+	private static final Simd VECTOR = vectorKernel();
+	private static final int TREE_MAX_DIMENSION = 16;
+	private static int treeThreshold = 512;
+
+	private static Simd vectorKernel() {
+		if ("scalar".equals(System.getProperty("Point.kernel"))) {
+			return null;
+		}
+		try {
+			return (Simd) Class.forName("Point.VectorKernel")
+					.getDeclaredConstructor().newInstance();
+		} catch (Throwable e) { // not built or module not resolved at runtime
+			return null;
+		}
+	}
+
+	/**
+	 * whether the SIMD kernel is in use
+	 */
+	public static boolean isVector() {
+		return VECTOR != null;
+	}
+
+	/**
+	 * the SIMD kernel, null when it is not in use
+	 */
+	static Simd vector() {
+		return VECTOR;
+	}
+
+	/**
+	 * number of seeds from which on the k-d tree is used, 0 disables it
+	 */
+	public static void setTreeThreshold(int k) {
+		treeThreshold = k;
+	}
+
+	/**
+	 * the k-d tree over these seeds, or null when there are too few seeds or
+	 * too many dimensions for it and the brute force kernels are used
+	 */
+	static CentroidTree tree(double[] seeds, int k, int dimension) {
+		if (treeThreshold > 0 && k >= treeThreshold
+				&& dimension <= TREE_MAX_DIMENSION) {
+			return new CentroidTree(seeds, k, dimension);
+		}
+		return null;
+	}
+
+	/**
+	 * assign points [from, to) to their nearest seed
+	 * @param coords
+	 * @param from
+	 * @param to
+	 * @param seeds
+	 * @param k
+	 * @param tree tree() of the seeds, null for the brute force kernels
+	 * @param labels
+	 * @return the sum of squared distances to the chosen seeds
+	 */
+	static double assign(PointStore coords, int from, int to,
+			double[] seeds, int k, CentroidTree tree, int[] labels) {
+		if (tree != null) {
+			return assignTree(coords, from, to, tree, labels);
+		}
+		if (VECTOR != null) {
+			return VECTOR.assign(coords, from, to, seeds, k, labels);
+		}
+		return assignScalar(coords, from, to, seeds, k, labels);
+	}
+
+	static double assignScalar(PointStore coords, int from, int to,
+			double[] seeds, int k, int[] labels) {
+		int dimension = coords.dimension();
+		double[] point = new double[dimension];
+		double cost = 0;
+		for (int i = from; i < to; i++) {
+			for (int d = 0; d < dimension; d++) {
+				point[d] = coords.get(d, i);
+			}
+			double dis = Double.MAX_VALUE;
+			int label = 0;
+			for (int j = 0; j < k; j++) {
+				double mydis = squaredDistance(point, seeds, j * dimension);
+				if (mydis < dis) {
+					dis = mydis;
+					label = j;
+				}
+			}
+			labels[i] = label;
+			cost += dis;
+		}
+		return cost;
+	}
+
+	static double assignTree(PointStore coords, int from, int to,
+			CentroidTree tree, int[] labels) {
+		int dimension = coords.dimension();
+		double[] point = new double[dimension];
+		double cost = 0;
+		for (int i = from; i < to; i++) {
+			for (int d = 0; d < dimension; d++) {
+				point[d] = coords.get(d, i);
+			}
+			labels[i] = tree.nearest(point);
+			cost += tree.lastDistance();
+		}
+		return cost;
+	}
+
+	/**
+	 * squared distance between a point and the seed starting at offset
+	 */
+	public static double squaredDistance(double[] point, double[] seeds,
+			int offset) {
+		double sum = 0;
+		for (int d = 0; d < point.length; d++) {
+			double diff = point[d] - seeds[offset + d];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+}
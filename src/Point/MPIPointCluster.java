@@ -8,71 +8,232 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 
-import mpi.*;
+import Cluster.JobServer;
+import Cluster.LabelWriter;
+import Cluster.StopCriteria;
+import Comm.CommException;
+import Comm.CommRequest;
+import Comm.Communicator;
+import Comm.MPJCommunicator;
+import Comm.ReduceOp;
+import Comm.SharedMemoryCommunicator;
+import Comm.Topology;
 
 public class MPIPointCluster {
 
+	private Communicator comm;
 	private int rank;
 	private int procs;
+	// ranks grouped by node, rank 0 exchanges data with the node leaders
+	private Topology topology;
+	// nodes of this many consecutive ranks instead of one node per host
+	private int ranksPerNode;
 
 	// each number represents the cluster it belongs to.
 	private int[] clusters;
 	private int[] capacity;
 
-	private double[] xPoint;
-	private double[] yPoint;
-	private double[] seedX;
-	private double[] seedY;
+	// coordinates stored by dimension, on the heap or off-heap
+	private PointStore coords;
+	// -offheap: coordinates live in direct buffers outside the heap
+	private boolean offHeap;
+	// -float: coordinates are stored and sent in single precision, seeds
+	// and centroid sums stay double
+	private boolean single;
+	// seeds stored row by row, seeds[j * dimension + d]
+	private double[] seeds;
+	private int dimension;
 	private int clusterNumber;
 	private int number;
 	private String output = "MPIPointOutput.csv";
+	// pipelined mode: shards travel in chunks which are assigned as they
+	// arrive
+	private boolean pipelined;
+	private int chunkSize;
+	// chunk transfers posted by init() and completed in the first iteration
+	private CommRequest[] pending;
+	// when to stop iterating, decided on the master
+	private StopCriteria criteria;
+	// file the trained seeds are saved to, null to keep them
+	private String model;
 
-	public static void main(String args[]) throws MPIException {
-		if (args.length != 4) {
-			System.out
-					.println("Usage: MPIPointCluster <Input> <K> <PointNumber> <Output>");
-			System.exit(-1);
+	public static void main(String args[]) throws CommException {
+		// with -threads the ranks run in this JVM instead of under MPI
+		int threads = 0;
+		for (int i = 0; i + 1 < args.length; i++) {
+			if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i + 1]);
+			}
 		}
+		if (threads > 0) {
+			final String[] arguments = args;
+			SharedMemoryCommunicator.run(threads,
+					new SharedMemoryCommunicator.Task() {
+						public void run(Communicator comm) throws Exception {
+							MPIPointCluster.run(comm, arguments);
+						}
+					});
+		} else {
+			Communicator comm = MPJCommunicator.init(args);
+			run(comm, args);
+			comm.finish();
+		}
+	}
 
-		MPI.Init(args);
-		MPIPointCluster cluster = new MPIPointCluster(
-				Integer.parseInt(args[1]), Integer.parseInt(args[2]));
-		cluster.output = args[3];
+	/**
+	 * parse the arguments and run one rank
+	 */
+	private static void run(Communicator comm, String args[])
+			throws CommException {
+		// leading options, the positional arguments follow them
+		boolean sweep = false;
+		boolean pipelined = false;
+		boolean offHeap = false;
+		boolean single = false;
+		int chunk = 8192;
+		int ranksPerNode = 0;
+		int port = -1;
+		String model = null;
+		String predict = null;
+		StopCriteria criteria = new StopCriteria();
+		int pos = 0;
+		while (pos < args.length && args[pos].startsWith("-")) {
+			int next = criteria.parse(args, pos);
+			if (next > pos) {
+				pos = next;
+				continue;
+			}
+			String option = args[pos++];
+			if (option.equals("-sweep")) {
+				sweep = true;
+			} else if (option.equals("-pipelined")) {
+				pipelined = true;
+			} else if (option.equals("-chunk") && pos < args.length) {
+				chunk = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-threads") && pos < args.length) {
+				pos++;
+			} else if (option.equals("-offheap")) {
+				offHeap = true;
+			} else if (option.equals("-float")) {
+				single = true;
+			} else if (option.equals("-ranksPerNode") && pos < args.length) {
+				ranksPerNode = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-kdtree") && pos < args.length) {
+				DistanceKernel.setTreeThreshold(Integer.parseInt(args[pos++]));
+			} else if (option.equals("-serve") && pos < args.length) {
+				port = Integer.parseInt(args[pos++]);
+			} else if (option.equals("-model") && pos < args.length) {
+				model = args[pos++];
+			} else if (option.equals("-predict") && pos < args.length) {
+				predict = args[pos++];
+			} else {
+				usage();
+			}
+		}
+		String[] params = Arrays.copyOfRange(args, pos, args.length);
+		if (predict != null) {
+			if (params.length != 2 || sweep || port >= 0) {
+				usage();
+			}
+			MPIPointCluster cluster = new MPIPointCluster(comm, 1, 0);
+			cluster.offHeap = offHeap;
+			cluster.single = single;
+			cluster.chunkSize = chunk;
+			long start = System.currentTimeMillis();
+			cluster.predict(predict, params[0], params[1]);
+			System.out.println("Rank " + cluster.rank + ": It uses "
+					+ (System.currentTimeMillis() - start)
+					+ " milliseconds to finish");
+			return;
+		}
+		boolean serve = port >= 0;
+		if (params.length != (sweep ? 5 : serve ? 2 : 4) || (sweep && serve)) {
+			usage();
+		}
+
+		// a sweep runs a list of K values with several random restarts each
+		// over data which is read and distributed only once, the restarts of
+		// a K share every pass over it. A service runs the K of every job it
+		// receives
+		int[] ks = { 1 };
+		if (!serve) {
+			String[] kList = params[1].split(",");
+			ks = new int[kList.length];
+			for (int i = 0; i < kList.length; i++) {
+				ks[i] = Integer.parseInt(kList[i].trim());
+			}
+		}
+		MPIPointCluster cluster = new MPIPointCluster(comm, ks[0],
+				Integer.parseInt(params[serve ? 1 : params.length - 2]));
+		if (!serve) {
+			cluster.output = params[params.length - 1];
+		}
+		cluster.pipelined = pipelined;
+		cluster.offHeap = offHeap;
+		cluster.single = single;
+		cluster.chunkSize = chunk;
+		cluster.ranksPerNode = ranksPerNode;
+		cluster.criteria = criteria;
+		cluster.model = model;
 		if (cluster.rank == 0) {
-			cluster.readData(args[0]);
-			cluster.initSeed();
+			cluster.readData(params[0]);
+			if (!sweep && !serve) {
+				cluster.initSeed();
+			}
 		}
 		// start to calculate time data
 		long start = System.currentTimeMillis();
 		cluster.init();
-		cluster.iteration();
+		if (serve) {
+			cluster.serve(port);
+		} else if (sweep) {
+			cluster.sweep(ks, Integer.parseInt(params[2]));
+		} else {
+			cluster.iteration();
+		}
 		// time ends here.
 		System.out.println("Rank " + cluster.rank + ": It uses "
 				+ (System.currentTimeMillis() - start)
 				+ " milliseconds to finish");
-		MPI.Finalize();
-		cluster.printCluster();
+		if (!sweep && !serve) {
+			cluster.printCluster();
+			cluster.saveModel(model);
+		}
 
 	}
 
-	public MPIPointCluster(int k, int number) throws MPIException {
-		this.rank = MPI.COMM_WORLD.Rank();
-		this.procs = MPI.COMM_WORLD.Size();
+	private static void usage() {
+		System.out
+				.println("Usage: MPIPointCluster [-threads <n>] [-pipelined] [-chunk <n>] [-offheap] [-float] [-kdtree <K>] [-ranksPerNode <n>] [-model <ModelFile>] "
+						+ StopCriteria.USAGE + " <Input> <K> <PointNumber> <Output>");
+		System.out
+				.println("       MPIPointCluster -sweep [-threads <n>] [-pipelined] [-chunk <n>] [-offheap] [-float] [-kdtree <K>] [-ranksPerNode <n>] [-model <ModelFile>] "
+						+ StopCriteria.USAGE + " <Input> <K1,K2,...> <Restarts> <PointNumber> <Output>");
+		System.out
+				.println("       MPIPointCluster " + JobServer.USAGE + " [-threads <n>] [-chunk <n>] [-offheap] [-float] [-kdtree <K>] [-ranksPerNode <n>] <Input> <PointNumber>");
+		System.out
+				.println("       MPIPointCluster -predict <ModelFile> [-threads <n>] [-chunk <n>] [-offheap] [-float] [-kdtree <K>] <Input> <Output>");
+		System.exit(-1);
+	}
+
+	public MPIPointCluster(Communicator comm, int k, int number)
+			throws CommException {
+		this.comm = comm;
+		this.rank = comm.rank();
+		this.procs = comm.size();
 		this.clusterNumber = k;
 		this.number = number;
-		this.xPoint = new double[number];
-		this.yPoint = new double[number];
-		this.seedX = new double[this.clusterNumber];
-		this.seedY = new double[this.clusterNumber];
 	}
 
 	/**
-	 * read data from file
+	 * read data from file, the dimension is taken from the first line
 	 */
 	private void readData(String filename) {
 		try {
@@ -81,10 +242,14 @@ public class MPIPointCluster {
 			int count = 0;
 			while ((line = br.readLine()) != null && count < this.number) {
 				String[] coordinate = line.split(",");
-				double x = Double.parseDouble(coordinate[0]);
-				double y = Double.parseDouble(coordinate[1]);
-				xPoint[count] = x;
-				yPoint[count] = y;
+				if (this.coords == null) {
+					this.dimension = coordinate.length;
+					this.coords = PointStore.allocate(this.dimension,
+							this.number, this.offHeap, this.single);
+				}
+				for (int d = 0; d < this.dimension; d++) {
+					this.coords.set(d, count, Double.parseDouble(coordinate[d]));
+				}
 				count++;
 			}
 			br.close();
@@ -102,23 +267,37 @@ public class MPIPointCluster {
 	 * initialize seeds randomly 
 	 */
 	private void initSeed() {
+		this.initSeed(new Random());
+	}
 
-		Random rand = new Random();
+	private void initSeed(Random rand) {
+		this.seeds = new double[this.clusterNumber * this.dimension];
 		for (int i = 0; i < this.clusterNumber; i++) {
-			int index = rand.nextInt(this.xPoint.length);
-			this.seedX[i] = this.xPoint[index];
-			this.seedY[i] = this.yPoint[index];
+			int index = rand.nextInt(this.number);
+			for (int d = 0; d < this.dimension; d++) {
+				this.seeds[i * this.dimension + d] = this.coords.get(d, index);
+			}
 		}
 	}
 
 	/**
-	 * Send data to each process
+	 * Send data to each process. Across nodes the shards go through the
+	 * node leaders, one message per node and dimension.
 	 */
-	public void init() throws MPIException {
+	public void init() throws CommException {
+		this.topology = Topology.create(this.comm, this.ranksPerNode);
 		this.capacity = new int[this.procs];
 		for (int i = 1; i < this.procs; i++) {
-			this.capacity[i] = xPoint.length / (this.procs - 1)
-					+ (i <= xPoint.length % (this.procs - 1) ? 1 : 0);
+			this.capacity[i] = this.number / (this.procs - 1)
+					+ (i <= this.number % (this.procs - 1) ? 1 : 0);
+		}
+		int[] dim = { this.dimension };
+		this.topology.bcast(dim, 0, 1);
+		this.dimension = dim[0];
+		if (rank != 0) {
+			this.coords = PointStore.allocate(this.dimension,
+					this.capacity[rank], this.offHeap, this.single);
+			this.seeds = new double[this.clusterNumber * this.dimension];
 		}
 		try {
 			System.out.println("Host: "
@@ -126,127 +305,794 @@ public class MPIPointCluster {
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		}
-		this.clusters = new int[xPoint.length];
+		this.clusters = new int[this.coords.size()];
 		Arrays.fill(clusters, -1);
-		if (rank == 0) {// master
+		if (this.pipelined) {
+			this.postChunks();
+		} else if (!this.topology.flat()) {
+			for (int d = 0; d < this.dimension; d++) {
+				this.topology.scatter(coords.column(d), this.shardOffsets(),
+						this.capacity, coords.column(d), 0);
+			}
+		} else if (rank == 0) {// master
 			int offset = 0;
 			for (int i = 1; i < this.procs; i++) {
 
-				MPI.COMM_WORLD.Send(xPoint, offset, this.capacity[i],
-						MPI.DOUBLE, i, i);
-				MPI.COMM_WORLD.Send(yPoint, offset, this.capacity[i],
-						MPI.DOUBLE, i, i);
-				MPI.COMM_WORLD.Send(clusters, offset, this.capacity[i],
-						MPI.INT, i, i);
+				for (int d = 0; d < this.dimension; d++) {
+					this.sendColumn(d, offset, this.capacity[i], i);
+				}
+				this.comm.send(clusters, offset, this.capacity[i], i, i);
 				offset += this.capacity[i];
 			}
 		} else {
-			MPI.COMM_WORLD.Recv(xPoint, 0, this.capacity[rank], MPI.DOUBLE, 0,
-					rank);
-			MPI.COMM_WORLD.Recv(yPoint, 0, this.capacity[rank], MPI.DOUBLE, 0,
+			for (int d = 0; d < this.dimension; d++) {
+				this.receiveColumn(d, this.capacity[rank]);
+			}
+			this.comm.recv(clusters, 0, this.capacity[rank], 0,
 					rank);
-			MPI.COMM_WORLD.Recv(clusters, 0, this.capacity[rank], MPI.INT, 0,
+		}
+	}
+
+	/**
+	 * send count values of dimension d from offset to rank dest. Off-heap
+	 * columns go in chunks, so a backend staging them on the heap never
+	 * needs more than a chunk.
+	 */
+	private void sendColumn(int d, int offset, int count, int dest)
+			throws CommException {
+		int step = this.offHeap ? this.chunkSize : Math.max(count, 1);
+		for (int c = 0; c < count; c += step) {
+			this.comm.send(coords.column(d), offset + c, Math.min(step, count
+					- c), dest, dest);
+		}
+	}
+
+	private void receiveColumn(int d, int count) throws CommException {
+		int step = this.offHeap ? this.chunkSize : Math.max(count, 1);
+		for (int c = 0; c < count; c += step) {
+			this.comm.recv(coords.column(d), c, Math.min(step, count - c), 0,
 					rank);
 		}
 	}
 
+	/**
+	 * the seeds, labels and stopping state of one model. Several of them
+	 * iterate together in a sweep; the one being worked on is swapped into
+	 * the fields the single model code uses.
+	 */
+	private static class Run {
+		private double[] seeds;
+		private int[] clusters;
+		private StopCriteria criteria;
+		private CentroidTree tree; // over this iteration's seeds
+	}
+
+	/**
+	 * the current model as a run of its own
+	 */
+	private Run current() {
+		Run run = new Run();
+		run.seeds = this.seeds;
+		run.clusters = this.clusters;
+		run.criteria = this.criteria;
+		return run;
+	}
+
+	private void enter(Run run) {
+		this.seeds = run.seeds;
+		this.clusters = run.clusters;
+		this.criteria = run.criteria;
+	}
+
+	private void leave(Run run) {
+		run.seeds = this.seeds;
+		run.clusters = this.clusters;
+	}
+
 	/**
 	 * iterations for K-means until converge
-	 * @throws MPIException
+	 * @throws CommException
 	 */
-	public void iteration() throws MPIException {
-		boolean[] changed = new boolean[1];
-		changed[0] = true;
+	public void iteration() throws CommException {
+		this.iteration(new Run[] { this.current() });
+	}
+
+	/**
+	 * iterate several models of clusterNumber seeds at once until each of
+	 * them stops. Every block of local points is assigned to all runs still
+	 * going before the next block is read, so they share one pass over the
+	 * data per iteration. The master gathers the labels and recalculates the
+	 * seeds of every run as for a single model. The last run is left in the
+	 * fields.
+	 */
+	private void iteration(Run[] runs) throws CommException {
+		int size = this.clusterNumber * this.dimension;
+		boolean[] changed = new boolean[runs.length];
+		Arrays.fill(changed, true);
 		int count = 0;
-		while (changed[0]) {
+		for (Run run : runs) {
+			run.criteria.start();
+		}
+		// the objective is reduced in every iteration only when the master
+		// stops on its improvement, otherwise once at the end
+		boolean[] measure = { rank == 0 && runs[0].criteria.usesObjective() };
+		this.topology.bcast(measure, 0, 1);
+		double[] seeds = new double[runs.length * size];
+		double[] localCost = new double[runs.length];
+		double[] objective = new double[runs.length];
+		while (running(changed)) {
 			count++;
-			MPI.COMM_WORLD.Bcast(seedX, 0, this.clusterNumber, MPI.DOUBLE, 0);
-			MPI.COMM_WORLD.Bcast(seedY, 0, this.clusterNumber, MPI.DOUBLE, 0);
-
-			for (int i = 0; i < this.capacity[rank]; i++) {
-				double dis = Double.MAX_VALUE;
-				for (int j = 0; j < seedX.length; j++) {
-					double mydis = distance(xPoint[i], yPoint[i], seedX[j],
-							seedY[j]);
-					if (mydis < dis) {
-						dis = mydis;
-						this.clusters[i] = j;
-					}
+			for (int r = 0; r < runs.length && rank == 0; r++) {
+				System.arraycopy(runs[r].seeds, 0, seeds, r * size, size);
+			}
+			this.topology.bcast(seeds, 0, seeds.length);
+			for (int r = 0; r < runs.length; r++) {
+				if (changed[r] && rank != 0) {
+					System.arraycopy(seeds, r * size, runs[r].seeds, 0, size);
+					runs[r].tree = DistanceKernel.tree(runs[r].seeds,
+							this.clusterNumber, this.dimension);
 				}
 			}
-			// calculate distance
-			if (this.rank != 0) { // wait for all the participants to send
-				// System.out.println("Send back cluster!");
-				MPI.COMM_WORLD.Send(clusters, 0, this.capacity[rank], MPI.INT,
-						0, 0);
+
+			if (this.pending != null) {
+				this.assignPipelined(runs, changed, localCost);
 			} else {
-				int[] newCluster = new int[this.clusters.length];
-				int offset = 0;
+				this.assign(runs, changed, localCost);
+			}
+			Arrays.fill(objective, Double.NaN);
+			if (measure[0]) {
+				this.topology.reduce(localCost, 0, objective, 0, runs.length,
+						ReduceOp.SUM);
+			}
+			for (int r = 0; r < runs.length; r++) {
+				if (!changed[r]) {
+					continue;
+				}
+				this.enter(runs[r]);
+				// calculate distance
+				if (this.rank != 0) { // wait for all the participants to send
+					this.topology.gather(clusters, 0, null, null,
+							this.capacity, null);
+				} else {
+					int[] newCluster = new int[this.clusters.length];
+					int reassigned = this.receiveLabels(newCluster);
+					this.clusters = newCluster;
+					changed[r] = !this.criteria.assigned(reassigned,
+							newCluster.length, objective[r]);
+					if (changed[r]) {
+						double[] previous = this.seeds;
+						this.recalculateSeed();
+						if (this.criteria.usesShift()) {
+							changed[r] = !this.criteria.moved(this
+									.shift(previous));
+						}
+					}
+				}
+				this.leave(runs[r]);
+			}
+			this.topology.bcast(changed, 0, changed.length);
+
+		}
+		if (!measure[0]) {
+			// the cost of every run stays from its last pass
+			this.topology.reduce(localCost, 0, objective, 0, runs.length,
+					ReduceOp.SUM);
+			for (int r = 0; r < runs.length; r++) {
+				runs[r].criteria.finish(objective[r]);
+			}
+		}
+		if (rank == 0) {
+			for (Run run : runs) {
+				run.criteria.report();
+			}
+		}
+		System.out.println("It runs " + count + " iterations on rank " + rank);
+	}
+
+	private static boolean running(boolean[] changed) {
+		for (boolean c : changed) {
+			if (c) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * assign the local points to the seeds of every run still going, in
+	 * blocks of chunkSize points when there are several runs
+	 */
+	private void assign(Run[] runs, boolean[] changed, double[] localCost) {
+		int count = this.capacity[rank];
+		int block = runs.length > 1 ? this.chunkSize : Math.max(count, 1);
+		for (int r = 0; r < runs.length; r++) {
+			if (changed[r]) {
+				localCost[r] = 0;
+			}
+		}
+		for (int from = 0; from < count; from += block) {
+			int to = Math.min(from + block, count);
+			for (int r = 0; r < runs.length; r++) {
+				if (changed[r]) {
+					localCost[r] += coords.assign(from, to, runs[r].seeds,
+							this.clusterNumber, runs[r].tree, runs[r].clusters);
+				}
+			}
+		}
+	}
+
+	/**
+	 * largest distance a seed moved in the last recalculation, the NaN
+	 * seeds of empty clusters are skipped
+	 */
+	private double shift(double[] previous) {
+		double max = 0;
+		for (int j = 0; j < this.clusterNumber; j++) {
+			double sum = 0;
+			for (int d = 0; d < this.dimension; d++) {
+				double diff = this.seeds[j * this.dimension + d]
+						- previous[j * this.dimension + d];
+				sum += diff * diff;
+			}
+			if (!Double.isNaN(sum)) {
+				max = Math.max(max, sum);
+			}
+		}
+		return Math.sqrt(max);
+	}
+
+	/**
+	 * post non-blocking transfers of every shard in chunks of chunkSize
+	 * points, one message per dimension. The master posts the chunks round
+	 * robin over the ranks so that every worker can start early.
+	 */
+	private void postChunks() throws CommException {
+		ArrayList<CommRequest> requests = new ArrayList<CommRequest>();
+		if (rank == 0) {
+			int[] offsets = this.shardOffsets();
+			for (int c = 0; c < this.number; c += this.chunkSize) {
 				for (int i = 1; i < this.procs; i++) {
-					// System.out.println("Offset is " + offset);
-					MPI.COMM_WORLD.Recv(newCluster, offset, this.capacity[i],
-							MPI.INT, i, 0);
-					offset += this.capacity[i];
+					int len = Math.min(this.chunkSize, this.capacity[i] - c);
+					for (int d = 0; d < this.dimension && len > 0; d++) {
+						requests.add(this.comm.isend(coords.column(d), offsets[i]
+								+ c, len, i, i));
+					}
+				}
+			}
+		} else {
+			for (int c = 0; c < this.capacity[rank]; c += this.chunkSize) {
+				int len = Math.min(this.chunkSize, this.capacity[rank] - c);
+				for (int d = 0; d < this.dimension; d++) {
+					requests.add(this.comm.irecv(coords.column(d), c, len, 0,
+							rank));
 				}
+			}
+		}
+		this.pending = requests.toArray(new CommRequest[requests.size()]);
+	}
 
-				// compare the two
-				int i = 0;
-				for (i = 0; i < newCluster.length; i++) {
-					if (this.clusters[i] == newCluster[i]) {
-						changed[0] = false;
-					} else {
-						this.clusters = newCluster;
-						this.recalculateSeed();
-						changed[0] = true;
+	/**
+	 * first assignment pass in pipelined mode, each chunk is assigned to
+	 * every run as soon as all of its dimensions have arrived
+	 */
+	private void assignPipelined(Run[] runs, boolean[] changed,
+			double[] localCost) throws CommException {
+		Arrays.fill(localCost, 0);
+		int[] arrived = new int[this.pending.length / this.dimension + 1];
+		for (int n = 0; n < this.pending.length; n++) {
+			int index = this.comm.waitAny(this.pending);
+			if (this.rank == 0) { // only the sends have to finish
+				continue;
+			}
+			int chunk = index / this.dimension;
+			if (++arrived[chunk] == this.dimension) {
+				int from = chunk * this.chunkSize;
+				int to = Math.min(from + this.chunkSize, this.capacity[rank]);
+				for (int r = 0; r < runs.length; r++) {
+					localCost[r] += coords.assign(from, to, runs[r].seeds,
+							this.clusterNumber, runs[r].tree, runs[r].clusters);
+				}
+			}
+		}
+		this.pending = null;
+	}
+
+	/**
+	 * first point of every shard
+	 */
+	private int[] shardOffsets() {
+		int[] offsets = new int[this.procs];
+		for (int i = 2; i < this.procs; i++) {
+			offsets[i] = offsets[i - 1] + this.capacity[i - 1];
+		}
+		return offsets;
+	}
+
+	/**
+	 * receive the labels of every rank in the order they arrive and compare
+	 * each part with the previous labels as soon as it is in
+	 * @return the number of labels which changed
+	 */
+	private int receiveLabels(final int[] newCluster) throws CommException {
+		final int[] offsets = this.shardOffsets();
+		final int[] changed = new int[1];
+		this.topology.gather(this.clusters, 0, newCluster, offsets,
+				this.capacity, new Topology.Arrival() {
+					public void arrived(int i) {
+						for (int j = offsets[i]; j < offsets[i]
+								+ capacity[i]; j++) {
+							if (clusters[j] != newCluster[j]) {
+								changed[0]++;
+							}
+						}
+					}
+				});
+		return changed[0];
+	}
+
+	/**
+	 * prepare a new run with k clusters over the data already distributed
+	 */
+	private void reset(int k) {
+		this.clusterNumber = k;
+		this.seeds = new double[k * this.dimension];
+		Arrays.fill(this.clusters, -1);
+		if (this.rank == 0) {
+			this.initSeed();
+		}
+	}
+
+	/**
+	 * run each K for the given number of restarts and keep the model with
+	 * the lowest SSE for every K. The restarts of a K iterate together and
+	 * share the passes over the data.
+	 */
+	public void sweep(int[] ks, int restarts) throws CommException {
+		StopCriteria criteria = this.criteria;
+		for (int k : ks) {
+			Run[] runs = new Run[restarts];
+			for (int r = 0; r < restarts; r++) {
+				this.reset(k);
+				this.criteria = criteria.copy();
+				runs[r] = this.current();
+				runs[r].clusters = this.clusters.clone();
+			}
+			this.iteration(runs);
+			this.criteria = criteria;
+			if (this.rank == 0) {
+				int best = 0;
+				for (int r = 0; r < restarts; r++) {
+					double sse = runs[r].criteria.objective();
+					System.out.println("K = " + k + " restart " + r + ": SSE "
+							+ sse);
+					if (sse < runs[best].criteria.objective()) {
+						best = r;
+					}
+				}
+				System.out.println("K = " + k + ": best SSE "
+						+ runs[best].criteria.objective() + " from restart "
+						+ best);
+				this.clusters = runs[best].clusters;
+				this.seeds = runs[best].seeds;
+				this.printCluster(this.output + "." + k);
+				if (this.model != null) {
+					this.saveModel(this.model + "." + k);
+				}
+			}
+		}
+	}
+
+	/**
+	 * keep the distributed data and run the jobs received by a JobServer on
+	 * rank 0 until one asks for shutdown. Every job starts like a restart of
+	 * a sweep, with the seeds and stopping criteria the job gives.
+	 */
+	public void serve(int port) throws CommException {
+		JobServer server = null;
+		if (this.rank == 0) {
+			try {
+				server = new JobServer(port);
+			} catch (IOException e) {
+				System.out.println("Cannot listen on port " + port);
+				System.exit(-1);
+			}
+			System.out.println("Serving clustering jobs on port "
+					+ server.port());
+		}
+		int[] k = new int[1];
+		JobServer.Job job = null;
+		double[] initial = null;
+		while (true) {
+			if (this.rank == 0) {
+				while (true) {
+					try {
+						job = server.next();
+					} catch (IOException e) {
+						System.out.println("I/O Exception while waiting for jobs");
+						System.exit(-1);
+					}
+					try {
+						initial = this.initialSeeds(job);
 						break;
+					} catch (IllegalArgumentException e) {
+						server.error(e.getMessage());
 					}
 				}
+				k[0] = job.k();
+			}
+			this.topology.bcast(k, 0, 1);
+			if (k[0] == 0) {
+				break;
+			}
+			this.reset(k[0]);
+			if (this.rank == 0) {
+				this.criteria = job.criteria();
+				if (initial != null) {
+					this.seeds = initial;
+				} else if (job.randomSeed() != null) {
+					this.initSeed(new Random(job.randomSeed()));
+				}
+			}
+			this.iteration();
+			if (this.rank == 0) {
+				this.answer(server);
+			}
+		}
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
+	/**
+	 * the seeds a job gives, one line of comma separated coordinates each
+	 * @return null when the seeds are to be chosen at random
+	 * @throws IllegalArgumentException
+	 *             when the job cannot run on this data
+	 */
+	private double[] initialSeeds(JobServer.Job job) {
+		if (job.k() > this.number) {
+			throw new IllegalArgumentException("K exceeds the " + this.number
+					+ " points");
+		}
+		if (job.seeds() == null) {
+			return null;
+		}
+		double[] seeds = new double[job.k() * this.dimension];
+		for (int j = 0; j < job.k(); j++) {
+			String[] coordinate = job.seeds()[j].split(",");
+			if (coordinate.length != this.dimension) {
+				throw new IllegalArgumentException("seed " + j + " has "
+						+ coordinate.length + " instead of " + this.dimension
+						+ " coordinates");
 			}
-			if (rank == 0) {
-				for (int i = 1; i < procs; i++) {
-					MPI.COMM_WORLD.Send(changed, 0, 1, MPI.BOOLEAN, i, i);
+			for (int d = 0; d < this.dimension; d++) {
+				seeds[j * this.dimension + d] = Double
+						.parseDouble(coordinate[d].trim());
+			}
+		}
+		return seeds;
+	}
+
+	/**
+	 * send the seeds and labels of the finished job to the client
+	 */
+	private void answer(JobServer server) {
+		try {
+			Writer out = server.output();
+			out.write("ok " + this.clusterNumber + " " + this.number + " "
+					+ this.criteria.iterations() + " "
+					+ this.criteria.objective() + "\n");
+			StringBuilder sb = new StringBuilder();
+			for (int j = 0; j < this.clusterNumber; j++) {
+				sb.setLength(0);
+				for (int d = 0; d < this.dimension; d++) {
+					sb.append(d == 0 ? "" : ",").append(
+							this.seeds[j * this.dimension + d]);
 				}
-			} else {
-				MPI.COMM_WORLD.Recv(changed, 0, 1, MPI.BOOLEAN, 0, rank);
+				out.write(sb.append('\n').toString());
+			}
+			for (int i = 0; i < this.number; i++) {
+				out.write(Integer.toString(this.clusters[i]));
+				out.write('\n');
 			}
+			server.done();
+		} catch (IOException e) {
+			System.out.println("Lost the client: " + e.getMessage());
+			server.drop();
+		}
+	}
 
+	/**
+	 * write the seeds to a model file on rank 0, one line of comma
+	 * separated coordinates per seed like the input
+	 */
+	private void saveModel(String filename) {
+		if (this.rank != 0 || filename == null) {
+			return;
+		}
+		try {
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(filename))));
+			StringBuilder sb = new StringBuilder();
+			for (int j = 0; j < this.clusterNumber; j++) {
+				sb.setLength(0);
+				for (int d = 0; d < this.dimension; d++) {
+					sb.append(d == 0 ? "" : ",").append(
+							this.seeds[j * this.dimension + d]);
+				}
+				bw.write(sb.append('\n').toString());
+			}
+			bw.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("I/O Exception!");
 		}
-		System.out.println("It runs " + count + " iterations on rank " + rank);
 	}
 
 	/**
-	 * update seeds after one iteration
+	 * read the seeds of a model file on rank 0
+	 */
+	private void loadModel(String filename) {
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(filename));
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				String[] coordinate = line.split(",");
+				double[] seed = new double[coordinate.length];
+				for (int d = 0; d < seed.length; d++) {
+					seed[d] = Double.parseDouble(coordinate[d]);
+				}
+				rows.add(seed);
+			}
+			br.close();
+		} catch (FileNotFoundException e) {
+			System.out.println(filename + " does not exist!");
+			System.exit(-1);
+		} catch (IOException e) {
+			System.out.println("I/O Exception while reading the model");
+			System.exit(-1);
+		}
+		if (rows.isEmpty()) {
+			System.out.println(filename + " holds no seeds");
+			System.exit(-1);
+		}
+		this.clusterNumber = rows.size();
+		this.dimension = rows.get(0).length;
+		this.seeds = new double[this.clusterNumber * this.dimension];
+		for (int j = 0; j < this.clusterNumber; j++) {
+			if (rows.get(j).length != this.dimension) {
+				System.out.println("Seed " + j + " of " + filename + " has "
+						+ rows.get(j).length + " instead of " + this.dimension
+						+ " coordinates");
+				System.exit(-1);
+			}
+			System.arraycopy(rows.get(j), 0, this.seeds, j * this.dimension,
+					this.dimension);
+		}
+	}
+
+	/**
+	 * a batch of points on its way to a worker and back
+	 */
+	private static class Batch {
+		private PointStore coords;
+		private int[] labels;
+		private int[] count = new int[1];
+		private ArrayList<CommRequest> requests = new ArrayList<CommRequest>();
+
+		Batch(int dimension, int size, boolean direct, boolean single) {
+			this.coords = PointStore.allocate(dimension, size, direct, single);
+			this.labels = new int[size];
+		}
+
+		void waitFor() throws CommException {
+			for (CommRequest r : this.requests) {
+				r.waitFor();
+			}
+			this.requests.clear();
+		}
+	}
+
+	/**
+	 * label the points of input with their nearest seed of a model and
+	 * write one label per line to output. Rank 0 reads the points in
+	 * batches of chunkSize and hands them round robin to the workers, two
+	 * batches per worker in flight, and writes the labels in input order.
+	 * A single rank labels the batches itself.
+	 */
+	public void predict(String modelFile, String input, String output)
+			throws CommException {
+		int[] shape = new int[2];
+		if (this.rank == 0) {
+			this.loadModel(modelFile);
+			shape[0] = this.clusterNumber;
+			shape[1] = this.dimension;
+		}
+		this.comm.bcast(shape, 0, 2, 0);
+		this.clusterNumber = shape[0];
+		this.dimension = shape[1];
+		if (this.rank != 0) {
+			this.seeds = new double[this.clusterNumber * this.dimension];
+		}
+		this.comm.bcast(this.seeds, 0, this.seeds.length, 0);
+		// the model does not change, one tree serves every batch
+		CentroidTree tree = DistanceKernel.tree(this.seeds,
+				this.clusterNumber, this.dimension);
+		if (this.rank != 0) {
+			this.labelBatches(tree);
+			return;
+		}
+
+		int workers = this.procs - 1;
+		// batch b goes to worker 1 + b % workers in slot b % slots
+		Batch[] batches = new Batch[Math.max(1, 2 * workers)];
+		long sent = 0;
+		long written = 0;
+		long points = 0;
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(input));
+			LabelWriter out = new LabelWriter(output);
+			while (true) {
+				int slot = (int) (sent % batches.length);
+				for (; written <= sent - batches.length; written++) {
+					this.writeBatch(batches[(int) (written % batches.length)],
+							out);
+				}
+				if (batches[slot] == null) {
+					batches[slot] = new Batch(this.dimension, this.chunkSize,
+							this.offHeap, this.single);
+				}
+				Batch batch = batches[slot];
+				batch.count[0] = this.readBatch(br, batch.coords);
+				if (batch.count[0] == 0) {
+					break;
+				}
+				points += batch.count[0];
+				if (workers == 0) {
+					batch.coords.assign(0, batch.count[0], this.seeds,
+							this.clusterNumber, tree, batch.labels);
+				} else {
+					int worker = 1 + (int) (sent % workers);
+					batch.requests.add(this.comm.isend(batch.count, 0, 1,
+							worker, worker));
+					for (int d = 0; d < this.dimension; d++) {
+						batch.requests.add(this.comm.isend(
+								batch.coords.column(d), 0, batch.count[0],
+								worker, worker));
+					}
+					batch.requests.add(this.comm.irecv(batch.labels, 0,
+							batch.count[0], worker, 0));
+				}
+				sent++;
+			}
+			for (; written < sent; written++) {
+				this.writeBatch(batches[(int) (written % batches.length)], out);
+			}
+			br.close();
+			out.close();
+		} catch (FileNotFoundException e) {
+			System.out.println(input + " does not exist!");
+			System.exit(-1);
+		} catch (IOException e) {
+			System.out.println("I/O Exception while labelling the data");
+			System.exit(-1);
+		}
+		int[] end = { 0 };
+		for (int i = 1; i < this.procs; i++) {
+			this.comm.send(end, 0, 1, i, i);
+		}
+		System.out.println("Labelled " + points + " points");
+	}
+
+	/**
+	 * read up to chunkSize points into a batch, blank lines are skipped
+	 * @return the number of points read, 0 at the end of the input
+	 */
+	private int readBatch(BufferedReader br, PointStore batch)
+			throws IOException {
+		int count = 0;
+		String line;
+		while (count < this.chunkSize && (line = br.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			String[] coordinate = line.split(",");
+			if (coordinate.length != this.dimension) {
+				System.out.println("A point has " + coordinate.length
+						+ " instead of " + this.dimension + " coordinates");
+				System.exit(-1);
+			}
+			for (int d = 0; d < this.dimension; d++) {
+				batch.set(d, count, Double.parseDouble(coordinate[d]));
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private void writeBatch(Batch batch, LabelWriter out) throws IOException,
+			CommException {
+		batch.waitFor();
+		out.write(batch.labels, 0, batch.count[0]);
+	}
+
+	/**
+	 * worker side of predict(): label the batches from rank 0 until an
+	 * empty one arrives
+	 */
+	private void labelBatches(CentroidTree tree) throws CommException {
+		PointStore batch = PointStore.allocate(this.dimension, this.chunkSize,
+				this.offHeap, this.single);
+		int[] labels = new int[this.chunkSize];
+		int[] count = new int[1];
+		while (true) {
+			this.comm.recv(count, 0, 1, 0, rank);
+			if (count[0] == 0) {
+				return;
+			}
+			for (int d = 0; d < this.dimension; d++) {
+				this.comm.recv(batch.column(d), 0, count[0], 0, rank);
+			}
+			batch.assign(0, count[0], this.seeds, this.clusterNumber, tree,
+					labels);
+			this.comm.send(labels, 0, count[0], 0, 0);
+		}
+	}
+
+	/**
+	 * update seeds after one iteration, the sums are taken in double also
+	 * for single precision coordinates
 	 */
 	private void recalculateSeed() {
 
-		double[] seedX = new double[this.clusterNumber];
-		double[] seedY = new double[this.clusterNumber];
+		double[] seeds = new double[this.clusterNumber * this.dimension];
 		int[] count = new int[this.clusterNumber];
 
 		for (int i = 0; i < this.clusters.length; i++) {
-			seedX[clusters[i]] += this.xPoint[i];
-			seedY[clusters[i]] += this.yPoint[i];
 			count[clusters[i]]++;
 		}
+		for (int d = 0; d < this.dimension; d++) {
+			for (int i = 0; i < this.clusters.length; i++) {
+				seeds[clusters[i] * this.dimension + d] += this.coords.get(d, i);
+			}
+		}
 
 		for (int i = 0; i < this.clusterNumber; i++) {
-			seedX[i] /= count[i];
-			seedY[i] /= count[i];
+			for (int d = 0; d < this.dimension; d++) {
+				seeds[i * this.dimension + d] /= count[i];
+			}
 		}
 
-		this.seedX = seedX;
-		this.seedY = seedY;
+		this.seeds = seeds;
 	}
 
 	public void printCluster() {
+		this.printCluster(this.output);
+	}
+
+	private void printCluster(String filename) {
 		if (this.rank == 0) {
 			try {
 				BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(new File(this.output))));
-				for (int i = 0; i < xPoint.length; i++) {
-					bw.write("Point: " + xPoint[i] + "," + yPoint[i]
-							+ " belongs to " + " cluster " + clusters[i] + "\n");
+						new FileOutputStream(new File(filename))));
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < this.number; i++) {
+					sb.setLength(0);
+					coords.append(sb.append("Point: "), 0, i);
+					for (int d = 1; d < this.dimension; d++) {
+						coords.append(sb.append(','), d, i);
+					}
+					sb.append(" belongs to  cluster ").append(clusters[i])
+							.append('\n');
+					bw.write(sb.toString());
 				}
 				bw.close();
 			} catch (FileNotFoundException e) {
@@ -259,17 +1105,4 @@ public class MPIPointCluster {
 		}
 	}
 
-	/**
-	 * calculate the distance between two points 
-	 * @param x
-	 * @param y
-	 * @param xCenter
-	 * @param yCenter
-	 * @return
-	 */
-	private double distance(double x, double y, double xCenter, double yCenter) {
-		return Math.sqrt((x - xCenter) * (x - xCenter) + (y - yCenter)
-				* (y - yCenter));
-	}
-
 }
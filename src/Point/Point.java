@@ -3,11 +3,9 @@ package Point;
 import java.io.Serializable;
 
 public class Point implements Serializable{
-	double x;
-	double y;
+	double[] coords;
 
-	public Point(double x, double y) {
-		this.x = x;
-		this.y = y;
+	public Point(double[] coords) {
+		this.coords = coords;
 	}
 }
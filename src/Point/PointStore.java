@@ -0,0 +1,189 @@
+package Point;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Coordinates of a set of points stored by dimension. The heap store keeps
+ * one double[] per dimension. The direct store keeps one direct ByteBuffer
+ * per dimension outside the Java heap, which the distance kernels read and
+ * the communicator sends and receives in place. Both also come in single
+ * precision, which halves the memory and the messages; values are rounded
+ * to float by set() and read back as double.
+ */
+abstract class PointStore {
+
+	static PointStore allocate(int dimension, int size, boolean direct,
+			boolean single) {
+		if (single) {
+			return direct ? new DirectFloat(dimension, size) : new HeapFloat(
+					dimension, size);
+		}
+		return direct ? new Direct(dimension, size) : new Heap(dimension,
+				size);
+	}
+
+	abstract int dimension();
+
+	abstract int size();
+
+	abstract double get(int d, int i);
+
+	abstract void set(int d, int i, double value);
+
+	/**
+	 * append coordinate d of point i in the precision it is stored in
+	 */
+	StringBuilder append(StringBuilder sb, int d, int i) {
+		return sb.append(this.get(d, i));
+	}
+
+	/**
+	 * message buffer holding dimension d, element i belongs to point i
+	 */
+	abstract Object column(int d);
+
+	/**
+	 * assign points [from, to) to their nearest seed, see DistanceKernel
+	 */
+	double assign(int from, int to, double[] seeds, int k,
+			CentroidTree tree, int[] labels) {
+		return DistanceKernel.assign(this, from, to, seeds, k, tree, labels);
+	}
+
+	private static class Heap extends PointStore {
+		private double[][] coords;
+
+		Heap(int dimension, int size) {
+			this.coords = new double[dimension][size];
+		}
+
+		int dimension() {
+			return this.coords.length;
+		}
+
+		int size() {
+			return this.coords[0].length;
+		}
+
+		double get(int d, int i) {
+			return this.coords[d][i];
+		}
+
+		void set(int d, int i, double value) {
+			this.coords[d][i] = value;
+		}
+
+		Object column(int d) {
+			return this.coords[d];
+		}
+	}
+
+	private static class Direct extends PointStore {
+		// one direct buffer per dimension, indexed by point
+		private DoubleBuffer[] views;
+		private int size;
+
+		Direct(int dimension, int size) {
+			this.size = size;
+			this.views = new DoubleBuffer[dimension];
+			for (int d = 0; d < dimension; d++) {
+				this.views[d] = ByteBuffer.allocateDirect(size * 8)
+						.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			}
+		}
+
+		int dimension() {
+			return this.views.length;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		double get(int d, int i) {
+			return this.views[d].get(i);
+		}
+
+		void set(int d, int i, double value) {
+			this.views[d].put(i, value);
+		}
+
+		Object column(int d) {
+			return this.views[d];
+		}
+	}
+
+	private static class HeapFloat extends PointStore {
+		private float[][] coords;
+
+		HeapFloat(int dimension, int size) {
+			this.coords = new float[dimension][size];
+		}
+
+		int dimension() {
+			return this.coords.length;
+		}
+
+		int size() {
+			return this.coords[0].length;
+		}
+
+		double get(int d, int i) {
+			return this.coords[d][i];
+		}
+
+		void set(int d, int i, double value) {
+			this.coords[d][i] = (float) value;
+		}
+
+		StringBuilder append(StringBuilder sb, int d, int i) {
+			return sb.append(this.coords[d][i]);
+		}
+
+		Object column(int d) {
+			return this.coords[d];
+		}
+	}
+
+	private static class DirectFloat extends PointStore {
+		// one direct buffer per dimension, indexed by point
+		private FloatBuffer[] views;
+		private int size;
+
+		DirectFloat(int dimension, int size) {
+			this.size = size;
+			this.views = new FloatBuffer[dimension];
+			for (int d = 0; d < dimension; d++) {
+				this.views[d] = ByteBuffer.allocateDirect(size * 4)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+		}
+
+		int dimension() {
+			return this.views.length;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		double get(int d, int i) {
+			return this.views[d].get(i);
+		}
+
+		void set(int d, int i, double value) {
+			this.views[d].put(i, (float) value);
+		}
+
+		StringBuilder append(StringBuilder sb, int d, int i) {
+			return sb.append(this.views[d].get(i));
+		}
+
+		Object column(int d) {
+			return this.views[d];
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package Point;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import Cluster.Check;
+
+/**
+ * Checks that the four point stores hold what was set, rounded to float by
+ * the single precision ones, and that the scalar, SIMD and k-d tree kernels
+ * give every store the labels of the scalar kernel over the same values,
+ * for ranges which do not fill the vectors, and leave the labels around
+ * them alone.
+ */
+public class PointStoreCheck {
+
+	public static void main(String[] args) {
+		Random rand = new Random(1);
+		int size = 1000;
+		int[] dimensions = { 1, 3, 33 };
+		int[] ks = { 1, 7, 40 };
+		for (int dimension : dimensions) {
+			double[][] values = new double[dimension][size];
+			for (double[] column : values) {
+				for (int i = 0; i < size; i++) {
+					column[i] = rand.nextGaussian() * 100;
+				}
+			}
+			for (boolean single : new boolean[] { false, true }) {
+				// the values as the store keeps them
+				PointStore expected = PointStore.allocate(dimension, size,
+						false, false);
+				for (int d = 0; d < dimension; d++) {
+					for (int i = 0; i < size; i++) {
+						expected.set(d, i, single ? (float) values[d][i]
+								: values[d][i]);
+					}
+				}
+				for (boolean direct : new boolean[] { false, true }) {
+					String what = (direct ? "direct " : "heap ")
+							+ (single ? "float" : "double") + " store of "
+							+ dimension + " dimensions";
+					PointStore coords = PointStore.allocate(dimension, size,
+							direct, single);
+					Check.that(coords.dimension() == dimension
+							&& coords.size() == size, what + " size");
+					for (int d = 0; d < dimension; d++) {
+						for (int i = 0; i < size; i++) {
+							coords.set(d, i, values[d][i]);
+						}
+					}
+					for (int d = 0; d < dimension; d++) {
+						for (int i = 0; i < size; i++) {
+							Check.that(coords.get(d, i) == expected.get(d, i),
+									what + " get");
+						}
+					}
+					for (int k : ks) {
+						check(coords, expected, k, rand, what);
+					}
+				}
+			}
+		}
+		System.out.println("PointStoreCheck: ok"
+				+ (DistanceKernel.isVector() ? "" : ", without SIMD kernel"));
+	}
+
+	/**
+	 * assign ranges of points with every kernel and compare with the scalar
+	 * kernel over the expected values. Short ranges at odd starts make the
+	 * direct stores stage blocks which are not aligned with anything, of
+	 * every length up to a few vectors.
+	 */
+	private static void check(PointStore coords, PointStore expected, int k,
+			Random rand, String what) {
+		int dimension = coords.dimension();
+		double[] seeds = new double[k * dimension];
+		for (int j = 0; j < k; j++) {
+			int i = rand.nextInt(coords.size());
+			for (int d = 0; d < dimension; d++) {
+				seeds[j * dimension + d] = expected.get(d, i)
+						+ rand.nextGaussian();
+			}
+		}
+		check(coords, expected, seeds, 3, coords.size() - 5, what);
+		for (int length = 0; length <= 40; length++) {
+			int from = 1 + rand.nextInt(coords.size() - length - 1);
+			check(coords, expected, seeds, from, from + length, what);
+		}
+	}
+
+	private static void check(PointStore coords, PointStore expected,
+			double[] seeds, int from, int to, String what) {
+		int k = seeds.length / coords.dimension();
+		int[] reference = new int[coords.size()];
+		double cost = DistanceKernel.assignScalar(expected, from, to, seeds,
+				k, reference);
+		CentroidTree tree = new CentroidTree(seeds, k, coords.dimension());
+
+		int kernels = DistanceKernel.isVector() ? 4 : 3;
+		for (int kernel = 0; kernel < kernels; kernel++) {
+			int[] labels = new int[coords.size()];
+			Arrays.fill(labels, -1);
+			double total;
+			if (kernel == 0) {
+				total = coords.assign(from, to, seeds, k,
+						DistanceKernel.tree(seeds, k, coords.dimension()),
+						labels);
+			} else if (kernel == 1) {
+				total = DistanceKernel.assignScalar(coords, from, to, seeds, k,
+						labels);
+			} else if (kernel == 2) {
+				total = DistanceKernel.assignTree(coords, from, to, tree,
+						labels);
+			} else {
+				total = DistanceKernel.vector().assign(coords, from, to, seeds,
+						k, labels);
+			}
+			String name = what + " with K = " + k + " over [" + from + ", "
+					+ to + ") and kernel " + kernel;
+			Check.that(Arrays.equals(labels, from, to, reference, from, to),
+					name + " labels");
+			Check.that(labels[from - 1] == -1 && labels[to] == -1, name
+					+ " labels outside the range");
+			Check.that(Math.abs(total - cost) <= 1e-9 * cost, name + " cost "
+					+ total + " instead of " + cost);
+		}
+	}
+}
@@ -9,16 +9,23 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
 
+import Cluster.StopCriteria;
+
 
 public class SeqPointCluster {
 	private ArrayList<Point> points;
 	private ArrayList<Point> seeds;
 	private int clusterNumber;
 	private ArrayList<HashSet<Point>> clusters;
+	// the same points stored by dimension for the distance kernel
+	private PointStore coords;
 	private String outputFile = "SeqPointCluster.csv";
+	// when to stop iterating
+	private StopCriteria criteria = new StopCriteria();
 
 	/**
 	 * read data from file
@@ -29,11 +36,21 @@ public class SeqPointCluster {
 			String line = null;
 			while ((line = br.readLine()) != null) {
 				String[] coordinate = line.split(",");
-				double x = Double.parseDouble(coordinate[0]);
-				double y = Double.parseDouble(coordinate[1]);
-				points.add(new Point(x, y));
+				double[] values = new double[coordinate.length];
+				for (int d = 0; d < values.length; d++) {
+					values[d] = Double.parseDouble(coordinate[d]);
+				}
+				points.add(new Point(values));
 			}
 			br.close();
+			this.coords = PointStore.allocate(points.get(0).coords.length,
+					points.size(), false, false);
+			for (int i = 0; i < points.size(); i++) {
+				double[] values = points.get(i).coords;
+				for (int d = 0; d < values.length; d++) {
+					this.coords.set(d, i, values[d]);
+				}
+			}
 		} catch (FileNotFoundException e) {
 			System.out.println(filename + " does not exist!");
 			System.exit(-1);
@@ -55,19 +72,6 @@ public class SeqPointCluster {
 		}
 	}
 
-	/**
-	 * calculate the distance between two points 
-	 * @param x
-	 * @param y
-	 * @param xCenter
-	 * @param yCenter
-	 * @return
-	 */
-	private double distance(Point p1, Point p2) {
-		return Math.sqrt((p1.x - p2.x) * (p1.x - p2.x) + (p1.y - p2.y)
-				* (p1.y - p2.y));
-	}
-
 	/**
 	 * Constructor 
 	 * @param k
@@ -80,15 +84,31 @@ public class SeqPointCluster {
 	}
 
 	public static void main(String args[]) {
-		if (args.length != 3) {
+		StopCriteria criteria = new StopCriteria();
+		int pos = 0;
+		while (args.length - pos > 3 && args[pos].startsWith("-")) {
+			int next = criteria.parse(args, pos);
+			if (next > pos) {
+				pos = next;
+			} else if (args[pos].equals("-kdtree")) {
+				DistanceKernel.setTreeThreshold(Integer.parseInt(args[pos + 1]));
+				pos += 2;
+			} else {
+				break;
+			}
+		}
+		if (args.length - pos != 3) {
 			System.out
-					.println("Usage: Java SeqPointCluster <InputFileName> <ClusterNumber> <OutputFileName>");
+					.println("Usage: Java SeqPointCluster [-kdtree <K>] "
+							+ StopCriteria.USAGE + " <InputFileName> <ClusterNumber> <OutputFileName>");
+			System.exit(-1);
 		}
 
-		SeqPointCluster spc = new SeqPointCluster(Integer.parseInt(args[1]));
-		spc.readData(args[0]);
+		SeqPointCluster spc = new SeqPointCluster(Integer.parseInt(args[pos + 1]));
+		spc.criteria = criteria;
+		spc.readData(args[pos]);
 		spc.initSeed();
-		spc.outputFile = args[2];
+		spc.outputFile = args[pos + 2];
 		long start = System.currentTimeMillis();
 		spc.iteration();
 		long time = System.currentTimeMillis() - start;
@@ -101,14 +121,19 @@ public class SeqPointCluster {
 	 * update seeds after one iteration
 	 */
 	private void recalculateSeed() {
+		int dimension = this.coords.dimension();
 		for (int i = 0; i < this.clusters.size(); i++) {
-			double x = 0, y = 0;
+			double[] sum = new double[dimension];
 			int size = this.clusters.get(i).size();
 			for (Point p : this.clusters.get(i)) {
-				x += p.x;
-				y += p.y;
+				for (int d = 0; d < dimension; d++) {
+					sum[d] += p.coords[d];
+				}
+			}
+			for (int d = 0; d < dimension; d++) {
+				sum[d] /= size;
 			}
-			this.seeds.set(i, new Point(x / size, y / size));
+			this.seeds.set(i, new Point(sum));
 		}
 	}
 
@@ -119,6 +144,12 @@ public class SeqPointCluster {
 	public void iteration() {
 		boolean changed = true;
 		int count = 0;
+		int dimension = this.coords.dimension();
+		int[] labels = new int[this.points.size()];
+		int[] previous = new int[labels.length];
+		Arrays.fill(previous, -1);
+		double[] seedCoords = new double[this.clusterNumber * dimension];
+		this.criteria.start();
 
 		while (changed) {
 			count++;
@@ -131,35 +162,45 @@ public class SeqPointCluster {
 			}
 
 			// calculate each point and put them into the cluster
-			for (Point point : this.points) {
-				double distance = Double.MAX_VALUE;
-				int index = -1;
-				for (int i = 0; i < this.seeds.size(); i++) {
-					Point seed = seeds.get(i);
-					double dis = distance(point, seed);
-					if (dis < distance) {
-						distance = dis;
-						index = i;
-					}
+			for (int i = 0; i < this.seeds.size(); i++) {
+				System.arraycopy(this.seeds.get(i).coords, 0, seedCoords, i
+						* dimension, dimension);
+			}
+			double objective = this.coords.assign(0, labels.length,
+					seedCoords, this.clusterNumber, DistanceKernel.tree(
+							seedCoords, this.clusterNumber, dimension), labels);
+			int reassigned = 0;
+			for (int i = 0; i < labels.length; i++) {
+				newClusters.get(labels[i]).add(this.points.get(i));
+				if (labels[i] != previous[i]) {
+					previous[i] = labels[i];
+					reassigned++;
 				}
-				newClusters.get(index).add(point);
 			}
 
 			// compare whether each cluster has changed or not
-
-			for (int i = 0; i < this.clusters.size(); i++) {
-				if (this.clusters.get(i).equals(newClusters.get(i))) {
-					changed = false;
-					continue;
-				} else {
-					this.clusters = newClusters;
-					this.recalculateSeed();
-					changed = true;
-					break;
+			this.clusters = newClusters;
+			changed = !this.criteria.assigned(reassigned, labels.length,
+					objective);
+			if (changed) {
+				this.recalculateSeed();
+				if (this.criteria.usesShift()) {
+					// the old seeds are still in seedCoords
+					double shift = 0;
+					for (int i = 0; i < this.seeds.size(); i++) {
+						double dis = DistanceKernel.squaredDistance(
+								this.seeds.get(i).coords, seedCoords, i
+										* dimension);
+						if (!Double.isNaN(dis)) {
+							shift = Math.max(shift, dis);
+						}
+					}
+					changed = !this.criteria.moved(Math.sqrt(shift));
 				}
 			}
 
 		}
+		this.criteria.report();
 
 	}
 
@@ -170,8 +211,13 @@ public class SeqPointCluster {
 			for (int i = 0; i < this.clusters.size(); i++) {
 				HashSet<Point> points = clusters.get(i);
 				for (Point p : points) {
-					bw.write("Point: " + p.x + "," + p.y + " belongs to " 
-							+ " cluster " + i + "\n");
+					StringBuilder sb = new StringBuilder("Point: ");
+					sb.append(p.coords[0]);
+					for (int d = 1; d < p.coords.length; d++) {
+						sb.append(',').append(p.coords[d]);
+					}
+					bw.write(sb.append(" belongs to  cluster ").append(i)
+							.append('\n').toString());
 				}
 			}
 			bw.close();
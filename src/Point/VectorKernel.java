@@ -0,0 +1,192 @@
+package Point;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of the assignment loop. Each lane holds one point, two
+ * vectors of points are processed against every seed at a time so each
+ * broadcast seed coordinate is reused. Only loaded through DistanceKernel,
+ * and only built where the compiler has a Vector API this class fits.
+ * The lanes are loaded straight from the arrays of a heap store. The points
+ * of a direct store are copied block by block into small arrays first,
+ * once for all seeds, which only needs the array loads every version of
+ * the API has. Float coordinates are loaded as half width vectors with the
+ * same number of lanes and widened to double before they are subtracted.
+ */
+class VectorKernel implements DistanceKernel.Simd {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(
+			float.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+	/**
+	 * loads dimension d of the points [i, i + lanes) of one store
+	 */
+	private abstract static class Lanes {
+		/**
+		 * make the points [i, i + count) ready for load()
+		 */
+		void stage(int i, int count) {
+		}
+
+		abstract DoubleVector load(int d, int i);
+	}
+
+	private static Lanes lanes(PointStore coords) {
+		int dimension = coords.dimension();
+		Object column = coords.column(0);
+		if (column instanceof double[]) {
+			double[][] columns = new double[dimension][];
+			for (int d = 0; d < dimension; d++) {
+				columns[d] = (double[]) coords.column(d);
+			}
+			return new Lanes() {
+				DoubleVector load(int d, int i) {
+					return DoubleVector.fromArray(SPECIES, columns[d], i);
+				}
+			};
+		}
+		if (column instanceof float[]) {
+			float[][] columns = new float[dimension][];
+			for (int d = 0; d < dimension; d++) {
+				columns[d] = (float[]) coords.column(d);
+			}
+			return new Lanes() {
+				DoubleVector load(int d, int i) {
+					return widen(FloatVector.fromArray(FLOATS, columns[d], i));
+				}
+			};
+		}
+		int block = 2 * SPECIES.length();
+		if (column instanceof FloatBuffer) {
+			FloatBuffer[] columns = new FloatBuffer[dimension];
+			for (int d = 0; d < dimension; d++) {
+				columns[d] = (FloatBuffer) coords.column(d);
+			}
+			float[][] staged = new float[dimension][block];
+			return new Lanes() {
+				private int first;
+
+				void stage(int i, int count) {
+					this.first = i;
+					for (int d = 0; d < dimension; d++) {
+						columns[d].get(i, staged[d], 0, count);
+					}
+				}
+
+				DoubleVector load(int d, int i) {
+					return widen(FloatVector.fromArray(FLOATS, staged[d], i
+							- this.first));
+				}
+			};
+		}
+		DoubleBuffer[] columns = new DoubleBuffer[dimension];
+		for (int d = 0; d < dimension; d++) {
+			columns[d] = (DoubleBuffer) coords.column(d);
+		}
+		double[][] staged = new double[dimension][block];
+		return new Lanes() {
+			private int first;
+
+			void stage(int i, int count) {
+				this.first = i;
+				for (int d = 0; d < dimension; d++) {
+					columns[d].get(i, staged[d], 0, count);
+				}
+			}
+
+			DoubleVector load(int d, int i) {
+				return DoubleVector.fromArray(SPECIES, staged[d], i
+						- this.first);
+			}
+		};
+	}
+
+	private static DoubleVector widen(FloatVector floats) {
+		return (DoubleVector) floats.convertShape(VectorOperators.F2D,
+				SPECIES, 0);
+	}
+
+	public double assign(PointStore coords, int from, int to,
+			double[] seeds, int k, int[] labels) {
+		int dimension = coords.dimension();
+		Lanes lanes = lanes(coords);
+		int width = SPECIES.length();
+		double[] bestOut = new double[width];
+		double[] labelOut = new double[width];
+		double cost = 0;
+		int i = from;
+
+		// blocks of two vectors
+		for (; i + 2 * width <= to; i += 2 * width) {
+			lanes.stage(i, 2 * width);
+			DoubleVector best0 = DoubleVector.broadcast(SPECIES, Double.MAX_VALUE);
+			DoubleVector best1 = best0;
+			DoubleVector label0 = DoubleVector.zero(SPECIES);
+			DoubleVector label1 = label0;
+			for (int j = 0; j < k; j++) {
+				DoubleVector acc0 = DoubleVector.zero(SPECIES);
+				DoubleVector acc1 = acc0;
+				int offset = j * dimension;
+				for (int d = 0; d < dimension; d++) {
+					double seed = seeds[offset + d];
+					DoubleVector diff0 = lanes.load(d, i).sub(seed);
+					DoubleVector diff1 = lanes.load(d, i + width).sub(seed);
+					acc0 = acc0.add(diff0.mul(diff0));
+					acc1 = acc1.add(diff1.mul(diff1));
+				}
+				VectorMask<Double> closer0 = acc0.lt(best0);
+				VectorMask<Double> closer1 = acc1.lt(best1);
+				best0 = best0.blend(acc0, closer0);
+				best1 = best1.blend(acc1, closer1);
+				label0 = label0.blend(j, closer0);
+				label1 = label1.blend(j, closer1);
+			}
+			cost += store(best0, label0, labels, i, bestOut, labelOut);
+			cost += store(best1, label1, labels, i + width, bestOut, labelOut);
+		}
+
+		// single vector
+		for (; i + width <= to; i += width) {
+			lanes.stage(i, width);
+			DoubleVector best = DoubleVector.broadcast(SPECIES, Double.MAX_VALUE);
+			DoubleVector label = DoubleVector.zero(SPECIES);
+			for (int j = 0; j < k; j++) {
+				DoubleVector acc = DoubleVector.zero(SPECIES);
+				int offset = j * dimension;
+				for (int d = 0; d < dimension; d++) {
+					DoubleVector diff = lanes.load(d, i).sub(seeds[offset + d]);
+					acc = acc.add(diff.mul(diff));
+				}
+				VectorMask<Double> closer = acc.lt(best);
+				best = best.blend(acc, closer);
+				label = label.blend(j, closer);
+			}
+			cost += store(best, label, labels, i, bestOut, labelOut);
+		}
+
+		// tail
+		return cost
+				+ DistanceKernel.assignScalar(coords, i, to, seeds, k, labels);
+	}
+
+	private static double store(DoubleVector best, DoubleVector label,
+			int[] labels, int offset, double[] bestOut, double[] labelOut) {
+		best.intoArray(bestOut, 0);
+		label.intoArray(labelOut, 0);
+		double cost = 0;
+		for (int l = 0; l < bestOut.length; l++) {
+			labels[offset + l] = (int) labelOut[l];
+			cost += bestOut[l];
+		}
+		return cost;
+	}
+}